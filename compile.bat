@@ -11,5 +11,8 @@ rem Copy resources to the build directory
 mkdir build\classes\resources
 xcopy /E /I src\resources build\classes\resources
 
+rem Compile the level maps into the binary format the game loads
+java -cp build\classes whg.LevelCompiler src\resources\maps build\classes\resources\maps
+
 echo Compilation complete.
 pause
\ No newline at end of file
@@ -17,6 +17,13 @@ if [ $? -eq 0 ]; then
     cp -r src/resources/* build/classes/resources/
     
     echo "Resources copied."
+
+    # Compile the level maps into the binary format the game loads
+    java -cp build/classes whg.LevelCompiler src/resources/maps build/classes/resources/maps
+    if [ $? -ne 0 ]; then
+        echo "Level compilation failed."
+        exit 1
+    fi
 else
     echo "Compilation failed."
     exit 1
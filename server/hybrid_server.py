@@ -29,11 +29,28 @@ level_completions = defaultdict(set)  # Combat ID -> set of player IDs that comp
 level_numbers = {}  # Combat ID -> current level number
 level_lock = threading.Lock()
 
-position_update_socket = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
-position_update_socket.bind(('', POSITION_UPDATE_PORT))
+# Clients that asked for player lists to be pushed to them
+SUBSCRIPTION_ACK = 0x57484753  # "WHGS"
+NUMBERED_REPLY = 0x57484752  # "WHGR", then the seq of "REQ <seq> <player id>"
+MIN_PUSH_INTERVAL_MS = 50
+MAX_PUSH_INTERVAL_MS = 1000
+SUBSCRIPTION_LEASE_MS = 5000  # Dropped unless renewed within this long
+subscribers = {}  # Player ID -> {'addr', 'interval', 'next_push', 'expires', 'version', ...}
+subscriber_lock = threading.Lock()
 
-player_list_socket = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
-player_list_socket.bind(('', PLAYER_LIST_PORT))
+# Version 2 of the protocol: compact snapshots, delta encoded against the
+# latest one the client acknowledged, and players known by 16 bit session
+# ids. The wire format is described in the client's SnapshotProtocol.java.
+SUBSCRIPTION_ACK_V2 = 0x57484732  # "WHG2"
+COMPACT_MARKER = 0xB2
+SNAPSHOT_HISTORY = 32
+QUANTIZE_SHIFT = 1
+MAX_SNAPSHOT = 1200
+REMOVED, NEW, POSITION, VELOCITY, COLOR, TAG = 0x01, 0x02, 0x04, 0x08, 0x10, 0x20
+COLOR_RED, COLOR_GREEN = 1, 2
+sessions = {}  # Player ID -> session ID, guarded by player_lock
+session_players = {}  # Session ID -> player ID
+next_session = 1
 
 # ------------------------
 # TCP SERVER FUNCTIONS
@@ -319,8 +336,12 @@ def pack_players_data(exclude_id=None, combat_tag=None):
     
     return packet, len(active_players)
 
-def handle_udp_request(data, addr, sock):
-    """Process incoming UDP request for player list"""
+def handle_udp_request(data, addr, sock, seq=None):
+    """Process incoming UDP request for player list
+
+    With a seq, the list follows NUMBERED_REPLY and the seq so the client
+    can tell which request it answers.
+    """
     try:
         # Extract player ID - should be a UUID string
         player_id = data.decode('utf-8').strip()
@@ -346,6 +367,8 @@ def handle_udp_request(data, addr, sock):
         # Create and send response with filtered players
         packet, count = pack_players_data(exclude_id=exclude_id, combat_tag=combat_tag)
         
+        if packet and seq is not None:
+            packet = struct.pack('!II', NUMBERED_REPLY, seq) + packet
         if packet:
             try:
                 sock.sendto(packet, addr)
@@ -362,6 +385,220 @@ def handle_udp_request(data, addr, sock):
         if len(data) > 0:
             logger.error(f"UDP: First few bytes: {' '.join(f'{b:02x}' for b in data[:min(20, len(data))])}")
 
+def handle_subscription(text, addr, sock):
+    """Process "SUBSCRIBE <interval ms> <player id>" or "UNSUBSCRIBE <player id>"
+
+    Subscribing again before the lease runs out renews it. The subscription
+    is acknowledged with the magic number and the interval that was chosen.
+    "SUBSCRIBE2" asks for compact snapshots instead of player lists, and its
+    acknowledgement also carries the player's session ID.
+    """
+    parts = text.split(' ', 2)
+    now = time.time_ns() // 1_000_000
+
+    if parts[0] == 'UNSUBSCRIBE' and len(parts) == 2:
+        with subscriber_lock:
+            subscribers.pop(parts[1], None)
+        logger.info(f"UDP: Player {parts[1][:8]}... unsubscribed")
+        return
+
+    if len(parts) != 3:
+        logger.warning(f"UDP: Bad subscription '{text}'")
+        return
+    player_id = parts[2]
+    interval = max(MIN_PUSH_INTERVAL_MS, min(MAX_PUSH_INTERVAL_MS, int(parts[1])))
+    version = 2 if parts[0] == 'SUBSCRIBE2' else 1
+
+    # A subscription counts as a request for keeping the player alive
+    with player_lock:
+        if player_id in players:
+            players[player_id]['addr'] = addr
+            players[player_id]['timestamp'] = now
+        session = session_for(player_id)
+
+    with subscriber_lock:
+        subscriber = subscribers.get(player_id)
+        if subscriber is None or subscriber['version'] != version:
+            logger.info(f"UDP: Player {player_id[:8]}... subscribed to version {version} every {interval}ms")
+            subscriber = {'next_push': now, 'version': version, 'seq': 0, 'history': {}, 'ack': None}
+            subscribers[player_id] = subscriber
+        elif subscriber['addr'] != addr:
+            # A new client for the same player: it has none of the snapshots
+            subscriber['ack'] = None
+        subscriber['addr'] = addr
+        subscriber['interval'] = interval
+        subscriber['expires'] = now + SUBSCRIPTION_LEASE_MS
+
+    if version == 2:
+        sock.sendto(struct.pack('!III', SUBSCRIPTION_ACK_V2, interval, session), addr)
+    else:
+        sock.sendto(struct.pack('!II', SUBSCRIPTION_ACK, interval), addr)
+
+def session_for(player_id):
+    """The player's session ID, assigned on first use. Call with player_lock held"""
+    global next_session
+    session = sessions.get(player_id)
+    if session is None:
+        if len(session_players) >= 0xFFFF:
+            raise RuntimeError("Out of session IDs")
+        while next_session in session_players:
+            next_session = next_session % 0xFFFF + 1
+        session = next_session
+        next_session = next_session % 0xFFFF + 1
+        sessions[player_id] = session
+        session_players[session] = player_id
+    return session
+
+def write_varint(buf, value):
+    while value > 0x7F:
+        buf.append((value & 0x7F) | 0x80)
+        value >>= 7
+    buf.append(value)
+
+def write_zigzag(buf, value):
+    write_varint(buf, value * 2 if value >= 0 else -value * 2 - 1)
+
+def write_string(buf, text):
+    data = text.encode('utf-8')[:255]
+    buf.append(len(data))
+    buf += data
+
+def read_varint(data, offset):
+    value = 0
+    shift = 0
+    while True:
+        b = data[offset]
+        offset += 1
+        value |= (b & 0x7F) << shift
+        if b < 0x80:
+            return value, offset
+        shift += 7
+
+def read_zigzag(data, offset):
+    value, offset = read_varint(data, offset)
+    return (value >> 1) ^ -(value & 1), offset
+
+def pack_snapshot(player_id, subscriber):
+    """Create a compact snapshot for a version 2 subscriber
+
+    Only players that changed since the latest snapshot the subscriber
+    acknowledged are written, unless that one is no longer in its history.
+    Players that don't fit in MAX_SNAPSHOT are left as they were, and what
+    was actually sent is kept as the base for later snapshots.
+    """
+    current = {}
+    with player_lock:
+        combat_tag = players[player_id]['combatTag'] if player_id in players else None
+        for pid, pdata in players.items():
+            if pid != player_id and (combat_tag is None or pdata['combatTag'] == combat_tag):
+                current[session_for(pid)] = (
+                    pid, pdata['combatTag'],
+                    pdata['x'] >> QUANTIZE_SHIFT, pdata['y'] >> QUANTIZE_SHIFT,
+                    pdata['velocityX'], pdata['velocityY'],
+                    COLOR_RED if pdata['color'] == 'red' else COLOR_GREEN)
+
+    seq = (subscriber['seq'] + 1) & 0xFFFF
+    history = subscriber['history']
+    ack = subscriber['ack']
+    distance = (seq - ack) & 0xFFFF if ack is not None else 0
+    if ack in history and 0 < distance < SNAPSHOT_HISTORY:
+        base = history[ack]
+    else:
+        base = {}
+        distance = 0
+
+    body = bytearray()
+    count = 0
+    sent = {}
+    room = MAX_SNAPSHOT - 17  # Largest header
+    for session, old in base.items():
+        if session in current:
+            continue
+        entry = bytearray()
+        write_varint(entry, session)
+        entry.append(REMOVED)
+        if len(body) + len(entry) <= room:
+            body += entry
+            count += 1
+        else:
+            sent[session] = old
+    for session, new in current.items():
+        old = base.get(session)
+        if old == new:
+            sent[session] = new
+            continue
+        entry = bytearray()
+        write_varint(entry, session)
+        flags = 0
+        fields = bytearray()
+        if old is None or old[0] != new[0]:
+            # A player the client doesn't know, perhaps in a reused session
+            flags |= NEW
+            write_string(fields, new[0])
+            old = (new[0], '', 0, 0, 0, 0, 0)
+        if new[2:4] != old[2:4]:
+            flags |= POSITION
+            write_zigzag(fields, new[2] - old[2])
+            write_zigzag(fields, new[3] - old[3])
+        if new[4:6] != old[4:6]:
+            flags |= VELOCITY
+            write_zigzag(fields, new[4] - old[4])
+            write_zigzag(fields, new[5] - old[5])
+        if new[6] != old[6]:
+            flags |= COLOR
+            fields.append(new[6])
+        if new[1] != old[1]:
+            flags |= TAG
+            write_string(fields, new[1])
+        entry.append(flags)
+        entry += fields
+        if len(body) + len(entry) <= room:
+            body += entry
+            count += 1
+            sent[session] = new
+        elif session in base:
+            sent[session] = base[session]
+
+    subscriber['seq'] = seq
+    history[seq] = sent
+    history.pop((seq - SNAPSHOT_HISTORY) & 0xFFFF, None)
+
+    packet = bytearray([COMPACT_MARKER])
+    packet += struct.pack('!H', seq)
+    write_varint(packet, distance)
+    packet += struct.pack('!Q', time.time_ns() // 1_000_000)
+    write_varint(packet, count)
+    packet += body
+    return packet, count
+
+def push_thread_func(sock):
+    """Send each subscriber a player list whenever its interval comes round"""
+    while True:
+        time.sleep(0.01)
+        now = time.time_ns() // 1_000_000
+        due = []
+        with subscriber_lock:
+            for pid in list(subscribers.keys()):
+                subscriber = subscribers[pid]
+                if now > subscriber['expires']:
+                    logger.info(f"UDP: Subscription of {pid[:8]}... expired")
+                    subscribers.pop(pid)
+                elif now >= subscriber['next_push']:
+                    subscriber['next_push'] = max(subscriber['next_push'] + subscriber['interval'], now)
+                    due.append((pid, subscriber['addr'], subscriber))
+
+        for pid, addr, subscriber in due:
+            if subscriber['version'] == 2:
+                packet, count = pack_snapshot(pid, subscriber)
+            else:
+                with player_lock:
+                    combat_tag = players[pid]['combatTag'] if pid in players else None
+                packet, count = pack_players_data(exclude_id=pid, combat_tag=combat_tag)
+            try:
+                sock.sendto(packet, addr)
+            except Exception as e:
+                logger.error(f"UDP: Failed to push to {pid[:8]}...: {e}")
+
 def handle_position_update(data, addr):
     """Process incoming position update packet"""
     try:
@@ -464,17 +701,82 @@ def handle_position_update(data, addr):
         import traceback
         logger.error(traceback.format_exc())
 
+def handle_compact_position_update(data, addr):
+    """Process a position update in version 2 of the protocol
+
+    The session ID stands for the player ID, and the update also carries the
+    latest snapshot the player received, plus one, or zero for none.
+    """
+    try:
+        session = struct.unpack_from('!H', data, 1)[0]
+        offset = 3
+        ack, offset = read_varint(data, offset)
+        x, offset = read_zigzag(data, offset)
+        y, offset = read_zigzag(data, offset)
+        velocityX, offset = read_zigzag(data, offset)
+        velocityY, offset = read_zigzag(data, offset)
+        color = 'red' if data[offset] == COLOR_RED else 'green'
+        now = time.time_ns() // 1_000_000
+
+        with player_lock:
+            player_id = session_players.get(session)
+            if player_id is None:
+                logger.debug(f"Position update for unknown session {session}")
+                return
+            if player_id in players:
+                players[player_id].update({
+                    'x': x,
+                    'y': y,
+                    'velocityX': velocityX,
+                    'velocityY': velocityY,
+                    'color': color,
+                    'timestamp': now
+                })
+            else:
+                players[player_id] = {
+                    'playerId': player_id,
+                    'x': x,
+                    'y': y,
+                    'velocityX': velocityX,
+                    'velocityY': velocityY,
+                    'color': color,
+                    'timestamp': now,
+                    'combatTag': '',  # Default empty tag
+                    'addr': addr
+                }
+                logger.info(f"New player {player_id}: pos=({x},{y}), vel=({velocityX},{velocityY})")
+
+        with subscriber_lock:
+            subscriber = subscribers.get(player_id)
+            if subscriber is not None and subscriber['version'] == 2:
+                subscriber['ack'] = ack - 1 if ack else None
+    except Exception as e:
+        logger.error(f"Error processing compact position update: {e}")
+
 def handle_position_updates(sock):
     """Listen for position updates on the position update socket"""
     while True:
         data, addr = sock.recvfrom(1024)
-        handle_position_update(data, addr)
+        if data and data[0] == COMPACT_MARKER:
+            handle_compact_position_update(data, addr)
+        else:
+            handle_position_update(data, addr)
 
 def handle_player_list_requests(sock):
     """Listen for player list requests on the player list socket"""
     while True:
         data, addr = sock.recvfrom(1024)
-        handle_udp_request(data, addr, sock)
+        if data.startswith((b'SUBSCRIBE ', b'SUBSCRIBE2 ', b'UNSUBSCRIBE ')):
+            try:
+                handle_subscription(data.decode('utf-8').strip(), addr, sock)
+            except Exception as e:
+                logger.error(f"UDP: Error processing subscription: {e}")
+        elif data.startswith(b'REQ '):
+            parts = data.split(b' ', 2)
+            if len(parts) == 3 and parts[1].isdigit():
+                handle_udp_request(parts[2], addr, sock, int(parts[1]) & 0x7FFFFFFF)
+        else:
+            handle_udp_request(data, addr, sock)
 
 def cleanup_thread_func():
     """Periodically clean up inactive players"""
@@ -487,6 +789,14 @@ def cleanup_thread_func():
                     logger.info(f"Cleanup: Player {pid} timed out; timestamp: {players[pid]['timestamp']}, current time: {current_time}")
                     players.pop(pid)
 
+        # Free the session IDs of players that are gone and not subscribed
+        with subscriber_lock:
+            subscribed = set(subscribers.keys())
+        with player_lock:
+            for pid in list(sessions.keys()):
+                if pid not in players and pid not in subscribed:
+                    session_players.pop(sessions.pop(pid))
+
 def add_dummy_player():
     """Add a dummy player for testing"""
     dummy_id = "dummy-player-id"
@@ -504,6 +814,12 @@ def add_dummy_player():
     logger.info("Added dummy player for testing")
 
 def main():
+    position_update_socket = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+    position_update_socket.bind(('', POSITION_UPDATE_PORT))
+
+    player_list_socket = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+    player_list_socket.bind(('', PLAYER_LIST_PORT))
+
     # Add a dummy player for testing
     add_dummy_player()
     
@@ -521,6 +837,9 @@ def main():
     
     # Start player list request thread
     threading.Thread(target=handle_player_list_requests, args=(player_list_socket,), daemon=True).start()
+
+    # Start pushing player lists to subscribers
+    threading.Thread(target=push_thread_func, args=(player_list_socket,), daemon=True).start()
     
     logger.info("Server started")
     while True:
@@ -9,6 +9,7 @@ import (
 	"log"
 	"net"
 	"os"
+	"strconv"
 	"strings"
 	"sync"
 	"time"
@@ -48,6 +49,71 @@ const (
 	TimeoutSeconds         = 15
 )
 
+// Subscriptions: clients that asked for player lists to be pushed to them.
+const (
+	SubscriptionAck      = 0x57484753 // "WHGS"
+	NumberedReply        = 0x57484752 // "WHGR", then the seq of "REQ <seq> <player id>"
+	MinPushIntervalMs    = 50
+	MaxPushIntervalMs    = 1000
+	SubscriptionLeaseMs  = 5000 // Dropped unless renewed within this long
+	PushTickMilliseconds = 10
+)
+
+// Subscriber is a client that player lists are pushed to.
+type Subscriber struct {
+	Addr       *net.UDPAddr
+	IntervalMs int64
+	NextPush   int64 // in milliseconds
+	Expires    int64 // in milliseconds
+	Version    int
+	// Version 2 only. Seq and History are only used by pushRoutine.
+	Seq     uint16
+	History map[uint16]map[uint16]snapshotEntry
+	Ack     int // The latest snapshot the client received, or -1
+}
+
+var (
+	subscribers     = make(map[string]*Subscriber)
+	subscribersLock sync.Mutex
+)
+
+// Version 2 of the protocol: compact snapshots, delta encoded against the
+// latest one the client acknowledged, and players known by 16 bit session
+// IDs. The wire format is described in the client's SnapshotProtocol.java.
+const (
+	SubscriptionAckV2 = 0x57484732 // "WHG2"
+	CompactMarker     = 0xB2
+	SnapshotHistory   = 32
+	QuantizeShift     = 1
+	MaxSnapshot       = 1200
+	FlagRemoved       = 0x01
+	FlagNew           = 0x02
+	FlagPosition      = 0x04
+	FlagVelocity      = 0x08
+	FlagColor         = 0x10
+	FlagTag           = 0x20
+	ColorRed          = 1
+	ColorGreen        = 2
+)
+
+// snapshotEntry is a player as a version 2 client last saw it.
+type snapshotEntry struct {
+	PlayerId  string
+	CombatTag string
+	X         int32 // quantized
+	Y         int32 // quantized
+	VelocityX int32
+	VelocityY int32
+	Color     byte
+}
+
+// Session IDs, guarded by playersLock.
+var (
+	sessions       = make(map[string]uint16)
+	sessionPlayers = make(map[uint16]string)
+	nextSession    = uint16(1)
+)
+
 // padString returns a string padded with spaces up to the desired length.
 func padString(s string, length int) string {
 	if len(s) >= length {
@@ -296,7 +362,11 @@ func udpPositionUpdateServer() {
 			log.Printf("Error reading UDP packet: %v", err)
 			continue
 		}
-		go handlePositionUpdate(buf[:n], remoteAddr)
+		if n > 0 && buf[0] == CompactMarker {
+			go handleCompactPositionUpdate(buf[:n], remoteAddr)
+		} else {
+			go handlePositionUpdate(buf[:n], remoteAddr)
+		}
 	}
 }
 
@@ -386,6 +456,7 @@ func udpPlayerListServer() {
 	}
 	defer conn.Close()
 	log.Printf("UDP player list server listening on port %d", UDPPlayerListPort)
+	go pushRoutine(conn)
 	for {
 		buf := make([]byte, 1024)
 		n, remoteAddr, err := conn.ReadFromUDP(buf)
@@ -401,6 +472,28 @@ func udpPlayerListServer() {
 // then looks up that player's combat tag and sends back a filtered list.
 func handlePlayerListRequest(data []byte, addr *net.UDPAddr, conn *net.UDPConn) {
 	playerId := strings.TrimSpace(string(data))
+	if strings.HasPrefix(playerId, "SUBSCRIBE ") || strings.HasPrefix(playerId, "SUBSCRIBE2 ") ||
+		strings.HasPrefix(playerId, "UNSUBSCRIBE ") {
+		handleSubscription(playerId, addr, conn)
+		return
+	}
+
+	// "REQ <seq> <player id>" is answered with NumberedReply and the seq
+	// before the list, so the client can tell which request it answers
+	numbered := false
+	var seq uint64
+	if strings.HasPrefix(playerId, "REQ ") {
+		parts := strings.SplitN(playerId, " ", 3)
+		if len(parts) != 3 {
+			return
+		}
+		var err error
+		if seq, err = strconv.ParseUint(parts[1], 10, 31); err != nil {
+			return
+		}
+		numbered = true
+		playerId = parts[2]
+	}
 
 	var combatTag string
 	playersLock.RLock()
@@ -413,11 +506,400 @@ func handlePlayerListRequest(data []byte, addr *net.UDPAddr, conn *net.UDPConn)
 
 	excludeId := playerId
 	packet, _ := packPlayersData(excludeId, combatTag)
+	if numbered {
+		header := make([]byte, 8, 8+len(packet))
+		binary.BigEndian.PutUint32(header[0:4], NumberedReply)
+		binary.BigEndian.PutUint32(header[4:8], uint32(seq))
+		packet = append(header, packet...)
+	}
 	if _, err := conn.WriteToUDP(packet, addr); err != nil {
 		log.Printf("Error sending UDP response: %v", err)
 	}
 }
 
+// handleSubscription processes "SUBSCRIBE <interval ms> <player id>" or
+// "UNSUBSCRIBE <player id>". Subscribing again before the lease runs out
+// renews it. The subscription is acknowledged with the magic number and the
+// interval that was chosen.
+func handleSubscription(text string, addr *net.UDPAddr, conn *net.UDPConn) {
+	parts := strings.SplitN(text, " ", 3)
+	now := time.Now().UnixNano() / 1e6
+
+	if parts[0] == "UNSUBSCRIBE" && len(parts) == 2 {
+		subscribersLock.Lock()
+		delete(subscribers, parts[1])
+		subscribersLock.Unlock()
+		log.Printf("Player %s unsubscribed", parts[1])
+		return
+	}
+
+	if len(parts) != 3 {
+		log.Printf("Bad subscription %q", text)
+		return
+	}
+	interval, err := strconv.ParseInt(parts[1], 10, 64)
+	if err != nil {
+		log.Printf("Bad subscription interval %q", parts[1])
+		return
+	}
+	if interval < MinPushIntervalMs {
+		interval = MinPushIntervalMs
+	}
+	if interval > MaxPushIntervalMs {
+		interval = MaxPushIntervalMs
+	}
+	playerId := parts[2]
+	version := 1
+	if parts[0] == "SUBSCRIBE2" {
+		version = 2
+	}
+
+	// A subscription counts as a request for keeping the player alive.
+	playersLock.Lock()
+	if p, exists := players[playerId]; exists {
+		p.Addr = addr
+		p.Timestamp = now
+	}
+	session, ok := sessionFor(playerId)
+	playersLock.Unlock()
+	if !ok {
+		log.Printf("Out of session IDs for player %s", playerId)
+		return
+	}
+
+	subscribersLock.Lock()
+	s, exists := subscribers[playerId]
+	if !exists || s.Version != version {
+		log.Printf("Player %s subscribed to version %d every %dms", playerId, version, interval)
+		s = &Subscriber{
+			NextPush: now,
+			Version:  version,
+			History:  make(map[uint16]map[uint16]snapshotEntry),
+			Ack:      -1,
+		}
+		subscribers[playerId] = s
+	} else if s.Addr == nil || s.Addr.String() != addr.String() {
+		// A new client for the same player: it has none of the snapshots
+		s.Ack = -1
+	}
+	s.Addr = addr
+	s.IntervalMs = interval
+	s.Expires = now + SubscriptionLeaseMs
+	subscribersLock.Unlock()
+
+	var ack []byte
+	if version == 2 {
+		ack = make([]byte, 12)
+		binary.BigEndian.PutUint32(ack[0:4], SubscriptionAckV2)
+		binary.BigEndian.PutUint32(ack[4:8], uint32(interval))
+		binary.BigEndian.PutUint32(ack[8:12], uint32(session))
+	} else {
+		ack = make([]byte, 8)
+		binary.BigEndian.PutUint32(ack[0:4], SubscriptionAck)
+		binary.BigEndian.PutUint32(ack[4:8], uint32(interval))
+	}
+	if _, err := conn.WriteToUDP(ack, addr); err != nil {
+		log.Printf("Error acknowledging subscription: %v", err)
+	}
+}
+
+// pushRoutine sends each subscriber a player list whenever its interval comes round.
+func pushRoutine(conn *net.UDPConn) {
+	type due struct {
+		playerId string
+		addr     *net.UDPAddr
+		sub      *Subscriber
+		version  int
+	}
+	for {
+		time.Sleep(PushTickMilliseconds * time.Millisecond)
+		now := time.Now().UnixNano() / 1e6
+
+		var pushes []due
+		subscribersLock.Lock()
+		for id, s := range subscribers {
+			if now > s.Expires {
+				log.Printf("Subscription of player %s expired", id)
+				delete(subscribers, id)
+				continue
+			}
+			if now >= s.NextPush {
+				s.NextPush += s.IntervalMs
+				if s.NextPush < now {
+					s.NextPush = now
+				}
+				pushes = append(pushes, due{id, s.Addr, s, s.Version})
+			}
+		}
+		subscribersLock.Unlock()
+
+		for _, d := range pushes {
+			var packet []byte
+			if d.version == 2 {
+				packet, _ = packSnapshot(d.playerId, d.sub)
+			} else {
+				var combatTag string
+				playersLock.RLock()
+				if p, exists := players[d.playerId]; exists {
+					combatTag = p.CombatTag
+				}
+				playersLock.RUnlock()
+				packet, _ = packPlayersData(d.playerId, combatTag)
+			}
+			if _, err := conn.WriteToUDP(packet, d.addr); err != nil {
+				log.Printf("Error pushing player list: %v", err)
+			}
+		}
+	}
+}
+
+// sessionFor returns the player's session ID, assigning one on first use.
+// The caller must hold playersLock for writing.
+func sessionFor(playerId string) (uint16, bool) {
+	if session, exists := sessions[playerId]; exists {
+		return session, true
+	}
+	if len(sessionPlayers) >= 0xFFFF {
+		return 0, false
+	}
+	for {
+		if _, used := sessionPlayers[nextSession]; !used && nextSession != 0 {
+			break
+		}
+		nextSession++
+	}
+	session := nextSession
+	nextSession++
+	sessions[playerId] = session
+	sessionPlayers[session] = playerId
+	return session, true
+}
+
+func writeUvarint(buf *bytes.Buffer, v uint64) {
+	var tmp [binary.MaxVarintLen64]byte
+	n := binary.PutUvarint(tmp[:], v)
+	buf.Write(tmp[:n])
+}
+
+// writeVarint writes a zigzag encoded varint.
+func writeVarint(buf *bytes.Buffer, v int64) {
+	var tmp [binary.MaxVarintLen64]byte
+	n := binary.PutVarint(tmp[:], v)
+	buf.Write(tmp[:n])
+}
+
+func writeString8(buf *bytes.Buffer, s string) {
+	b := []byte(s)
+	if len(b) > 255 {
+		b = b[:255]
+	}
+	buf.WriteByte(byte(len(b)))
+	buf.Write(b)
+}
+
+// packSnapshot creates a compact snapshot for a version 2 subscriber. Only
+// players that changed since the latest snapshot the subscriber acknowledged
+// are written, unless that one is no longer in its history. Players that
+// don't fit in MaxSnapshot are left as they were, and what was actually sent
+// is kept as the base for later snapshots.
+func packSnapshot(playerId string, s *Subscriber) ([]byte, int) {
+	current := make(map[uint16]snapshotEntry)
+	playersLock.Lock()
+	var combatTag string
+	if p, exists := players[playerId]; exists {
+		combatTag = p.CombatTag
+	}
+	for pid, p := range players {
+		if pid == playerId || (combatTag != "" && p.CombatTag != combatTag) {
+			continue
+		}
+		session, ok := sessionFor(pid)
+		if !ok {
+			continue
+		}
+		color := byte(ColorGreen)
+		if strings.ToLower(p.Color) == "red" {
+			color = ColorRed
+		}
+		current[session] = snapshotEntry{
+			PlayerId:  pid,
+			CombatTag: p.CombatTag,
+			X:         p.X >> QuantizeShift,
+			Y:         p.Y >> QuantizeShift,
+			VelocityX: p.VelocityX,
+			VelocityY: p.VelocityY,
+			Color:     color,
+		}
+	}
+	playersLock.Unlock()
+
+	subscribersLock.Lock()
+	ack := s.Ack
+	subscribersLock.Unlock()
+
+	seq := s.Seq + 1
+	distance := uint16(0)
+	base := map[uint16]snapshotEntry{}
+	if ack >= 0 {
+		if b, exists := s.History[uint16(ack)]; exists {
+			if d := seq - uint16(ack); d > 0 && d < SnapshotHistory {
+				base = b
+				distance = d
+			}
+		}
+	}
+
+	body := new(bytes.Buffer)
+	count := 0
+	sent := make(map[uint16]snapshotEntry)
+	room := MaxSnapshot - 17 // Largest header
+	for session, old := range base {
+		if _, exists := current[session]; exists {
+			continue
+		}
+		entry := new(bytes.Buffer)
+		writeUvarint(entry, uint64(session))
+		entry.WriteByte(FlagRemoved)
+		if body.Len()+entry.Len() <= room {
+			body.Write(entry.Bytes())
+			count++
+		} else {
+			sent[session] = old
+		}
+	}
+	for session, cur := range current {
+		old, inBase := base[session]
+		if inBase && old == cur {
+			sent[session] = cur
+			continue
+		}
+		fields := new(bytes.Buffer)
+		flags := byte(0)
+		prev := old
+		if !inBase || old.PlayerId != cur.PlayerId {
+			// A player the client doesn't know, perhaps in a reused session.
+			flags |= FlagNew
+			writeString8(fields, cur.PlayerId)
+			prev = snapshotEntry{PlayerId: cur.PlayerId}
+		}
+		if cur.X != prev.X || cur.Y != prev.Y {
+			flags |= FlagPosition
+			writeVarint(fields, int64(cur.X-prev.X))
+			writeVarint(fields, int64(cur.Y-prev.Y))
+		}
+		if cur.VelocityX != prev.VelocityX || cur.VelocityY != prev.VelocityY {
+			flags |= FlagVelocity
+			writeVarint(fields, int64(cur.VelocityX-prev.VelocityX))
+			writeVarint(fields, int64(cur.VelocityY-prev.VelocityY))
+		}
+		if cur.Color != prev.Color {
+			flags |= FlagColor
+			fields.WriteByte(cur.Color)
+		}
+		if cur.CombatTag != prev.CombatTag {
+			flags |= FlagTag
+			writeString8(fields, cur.CombatTag)
+		}
+		entry := new(bytes.Buffer)
+		writeUvarint(entry, uint64(session))
+		entry.WriteByte(flags)
+		entry.Write(fields.Bytes())
+		if body.Len()+entry.Len() <= room {
+			body.Write(entry.Bytes())
+			count++
+			sent[session] = cur
+		} else if inBase {
+			sent[session] = old
+		}
+	}
+
+	s.Seq = seq
+	s.History[seq] = sent
+	delete(s.History, seq-SnapshotHistory)
+
+	packet := new(bytes.Buffer)
+	packet.WriteByte(CompactMarker)
+	binary.Write(packet, binary.BigEndian, seq)
+	writeUvarint(packet, uint64(distance))
+	binary.Write(packet, binary.BigEndian, uint64(time.Now().UnixNano()/1e6))
+	writeUvarint(packet, uint64(count))
+	packet.Write(body.Bytes())
+	return packet.Bytes(), count
+}
+
+// handleCompactPositionUpdate parses a position update in version 2 of the
+// protocol. The session ID stands for the player ID, and the update also
+// carries the latest snapshot the player received, plus one, or zero for none.
+func handleCompactPositionUpdate(data []byte, addr *net.UDPAddr) {
+	if len(data) < 4 {
+		log.Printf("Compact position update too short")
+		return
+	}
+	session := binary.BigEndian.Uint16(data[1:3])
+	offset := 3
+	ack, n := binary.Uvarint(data[offset:])
+	if n <= 0 {
+		log.Printf("Error reading ack")
+		return
+	}
+	offset += n
+	var values [4]int32 // x, y, velocity x and y
+	for i := range values {
+		v, n := binary.Varint(data[offset:])
+		if n <= 0 {
+			log.Printf("Error reading compact position update")
+			return
+		}
+		values[i] = int32(v)
+		offset += n
+	}
+	if offset >= len(data) {
+		log.Printf("Error reading color")
+		return
+	}
+	color := "green"
+	if data[offset] == ColorRed {
+		color = "red"
+	}
+	now := time.Now().UnixNano() / 1e6
+
+	playersLock.Lock()
+	playerId, exists := sessionPlayers[session]
+	if !exists {
+		playersLock.Unlock()
+		return
+	}
+	if p, ok := players[playerId]; ok {
+		p.X = values[0]
+		p.Y = values[1]
+		p.VelocityX = values[2]
+		p.VelocityY = values[3]
+		p.Color = color
+		p.Timestamp = now
+		p.Addr = addr
+	} else {
+		players[playerId] = &Player{
+			PlayerId:  playerId,
+			CombatTag: "",
+			X:         values[0],
+			Y:         values[1],
+			VelocityX: values[2],
+			VelocityY: values[3],
+			Color:     color,
+			Timestamp: now,
+			Addr:      addr,
+		}
+		log.Printf("New player %s added via compact position update", playerId)
+	}
+	playersLock.Unlock()
+
+	subscribersLock.Lock()
+	if s, ok := subscribers[playerId]; ok && s.Version == 2 {
+		s.Ack = int(ack) - 1
+	}
+	subscribersLock.Unlock()
+}
+
 // cleanupRoutine periodically removes players that have timed out.
 func cleanupRoutine() {
 	for {
@@ -434,6 +916,22 @@ func cleanupRoutine() {
 			}
 		}
 		playersLock.Unlock()
+
+		// Free the session IDs of players that are gone and not subscribed.
+		subscribersLock.Lock()
+		subscribed := make(map[string]bool, len(subscribers))
+		for id := range subscribers {
+			subscribed[id] = true
+		}
+		subscribersLock.Unlock()
+		playersLock.Lock()
+		for id, session := range sessions {
+			if _, exists := players[id]; !exists && !subscribed[id] {
+				delete(sessions, id)
+				delete(sessionPlayers, session)
+			}
+		}
+		playersLock.Unlock()
 	}
 }
 
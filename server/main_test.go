@@ -0,0 +1,811 @@
+package main
+
+import (
+	"bytes"
+	"encoding/binary"
+	"encoding/hex"
+	"encoding/json"
+	"fmt"
+	"io"
+	"io/ioutil"
+	"log"
+	"net"
+	"os"
+	"reflect"
+	"sort"
+	"strings"
+	"testing"
+	"time"
+)
+
+// Run with: go test main.go main_test.go
+//
+// testdata/snapshots.json is written by test_snapshot.py from the Python
+// server's snapshots, and the client's SnapshotCheck decodes it too.
+
+func TestMain(m *testing.M) {
+	log.SetOutput(ioutil.Discard)
+	os.Exit(m.Run())
+}
+
+// fixturePlayer is a player as the client shows it: positions in pixels.
+type fixturePlayer struct {
+	PlayerId  string `json:"playerId"`
+	CombatTag string `json:"combatTag"`
+	X         int32  `json:"x"`
+	Y         int32  `json:"y"`
+	VelocityX int32  `json:"velocityX"`
+	VelocityY int32  `json:"velocityY"`
+	Color     string `json:"color"`
+}
+
+type fixturePacket struct {
+	Bytes      string           `json:"bytes"`
+	ServerTime uint64           `json:"serverTime"`
+	Players    *[]fixturePlayer `json:"players"` // nil if the snapshot can't be decoded
+	Changed    []string         `json:"changed"`
+}
+
+type fixtureCase struct {
+	Name    string          `json:"name"`
+	Packets []fixturePacket `json:"packets"`
+}
+
+// snapshotDecoder rebuilds snapshots the way the client's SnapshotDecoder does.
+type snapshotDecoder struct {
+	history    map[uint16]map[uint64]snapshotEntry
+	latest     uint16
+	serverTime uint64
+	changed    []string // Player IDs whose entries in the latest snapshot changed them
+}
+
+func newSnapshotDecoder() *snapshotDecoder {
+	return &snapshotDecoder{history: make(map[uint16]map[uint64]snapshotEntry)}
+}
+
+// decode returns the players in the snapshot, or nil if its base is gone.
+func (d *snapshotDecoder) decode(packet []byte) (map[uint64]snapshotEntry, error) {
+	r := bytes.NewReader(packet)
+	marker, err := r.ReadByte()
+	if err != nil || marker != CompactMarker {
+		return nil, fmt.Errorf("no marker")
+	}
+	var seq uint16
+	if err := binary.Read(r, binary.BigEndian, &seq); err != nil {
+		return nil, err
+	}
+	distance, err := binary.ReadUvarint(r)
+	if err != nil {
+		return nil, err
+	}
+	var serverTime uint64
+	if err := binary.Read(r, binary.BigEndian, &serverTime); err != nil {
+		return nil, err
+	}
+
+	state := make(map[uint64]snapshotEntry)
+	if distance != 0 {
+		base, exists := d.history[seq-uint16(distance)]
+		if distance >= SnapshotHistory || !exists {
+			return nil, nil
+		}
+		for session, entry := range base {
+			state[session] = entry
+		}
+	}
+
+	changed := []string{}
+	count, err := binary.ReadUvarint(r)
+	if err != nil {
+		return nil, err
+	}
+	for i := uint64(0); i < count; i++ {
+		session, err := binary.ReadUvarint(r)
+		if err != nil {
+			return nil, err
+		}
+		flags, err := r.ReadByte()
+		if err != nil {
+			return nil, err
+		}
+		if flags&FlagRemoved != 0 {
+			delete(state, session)
+			continue
+		}
+		entry, exists := state[session]
+		if flags&FlagNew != 0 {
+			id, err := readString8(r)
+			if err != nil {
+				return nil, err
+			}
+			entry = snapshotEntry{PlayerId: id}
+		} else if !exists {
+			return nil, fmt.Errorf("change to unknown session %d", session)
+		}
+		if flags&FlagPosition != 0 {
+			if entry.X, err = readDelta(r, entry.X); err != nil {
+				return nil, err
+			}
+			if entry.Y, err = readDelta(r, entry.Y); err != nil {
+				return nil, err
+			}
+		}
+		if flags&FlagVelocity != 0 {
+			if entry.VelocityX, err = readDelta(r, entry.VelocityX); err != nil {
+				return nil, err
+			}
+			if entry.VelocityY, err = readDelta(r, entry.VelocityY); err != nil {
+				return nil, err
+			}
+		}
+		if flags&FlagColor != 0 {
+			if entry.Color, err = r.ReadByte(); err != nil {
+				return nil, err
+			}
+		}
+		if flags&FlagTag != 0 {
+			if entry.CombatTag, err = readString8(r); err != nil {
+				return nil, err
+			}
+		}
+		if flags&(FlagNew|FlagPosition|FlagVelocity|FlagColor|FlagTag) != 0 {
+			changed = append(changed, entry.PlayerId)
+		}
+		state[session] = entry
+	}
+	if r.Len() != 0 {
+		return nil, fmt.Errorf("%d trailing bytes", r.Len())
+	}
+
+	d.history[seq] = state
+	delete(d.history, seq-SnapshotHistory)
+	d.latest = seq
+	d.serverTime = serverTime
+	sort.Strings(changed)
+	d.changed = changed
+	return state, nil
+}
+
+func readDelta(r *bytes.Reader, old int32) (int32, error) {
+	v, err := binary.ReadVarint(r)
+	return old + int32(v), err
+}
+
+func readString8(r *bytes.Reader) (string, error) {
+	n, err := r.ReadByte()
+	if err != nil {
+		return "", err
+	}
+	b := make([]byte, n)
+	if _, err := io.ReadFull(r, b); err != nil {
+		return "", err
+	}
+	return string(b), nil
+}
+
+// shown returns the players as the client shows them, sorted by ID.
+func shown(state map[uint64]snapshotEntry) []fixturePlayer {
+	list := []fixturePlayer{}
+	for _, e := range state {
+		color := "green"
+		if e.Color == ColorRed {
+			color = "red"
+		}
+		list = append(list, fixturePlayer{e.PlayerId, e.CombatTag, e.X << QuantizeShift, e.Y << QuantizeShift,
+			e.VelocityX, e.VelocityY, color})
+	}
+	sort.Slice(list, func(i, j int) bool { return list[i].PlayerId < list[j].PlayerId })
+	return list
+}
+
+func loadFixtures(t *testing.T) []fixtureCase {
+	data, err := ioutil.ReadFile("testdata/snapshots.json")
+	if err != nil {
+		t.Fatal(err)
+	}
+	var cases []fixtureCase
+	if err := json.Unmarshal(data, &cases); err != nil {
+		t.Fatal(err)
+	}
+	return cases
+}
+
+func TestDecodeFixtures(t *testing.T) {
+	for _, c := range loadFixtures(t) {
+		d := newSnapshotDecoder()
+		for i, p := range c.Packets {
+			packet, err := hex.DecodeString(p.Bytes)
+			if err != nil {
+				t.Fatal(err)
+			}
+			state, err := d.decode(packet)
+			if err != nil {
+				t.Fatalf("%s packet %d: %v", c.Name, i, err)
+			}
+			if p.Players == nil {
+				if state != nil {
+					t.Errorf("%s packet %d: decoded a snapshot without its base", c.Name, i)
+				}
+				continue
+			}
+			if state == nil {
+				t.Fatalf("%s packet %d: not decoded", c.Name, i)
+			}
+			if got := shown(state); !reflect.DeepEqual(got, *p.Players) {
+				t.Errorf("%s packet %d: players %v, expected %v", c.Name, i, got, *p.Players)
+			}
+			if d.serverTime != p.ServerTime {
+				t.Errorf("%s packet %d: server time %d, expected %d", c.Name, i, d.serverTime, p.ServerTime)
+			}
+			if !reflect.DeepEqual(d.changed, p.Changed) {
+				t.Errorf("%s packet %d: changed %v, expected %v", c.Name, i, d.changed, p.Changed)
+			}
+		}
+	}
+}
+
+func resetServer() {
+	playersLock.Lock()
+	for id := range players {
+		delete(players, id)
+	}
+	for id := range sessions {
+		delete(sessions, id)
+	}
+	for session := range sessionPlayers {
+		delete(sessionPlayers, session)
+	}
+	nextSession = 1
+	playersLock.Unlock()
+	subscribersLock.Lock()
+	for id := range subscribers {
+		delete(subscribers, id)
+	}
+	subscribersLock.Unlock()
+}
+
+func setPlayer(id string, x, y int32, color, tag string) *Player {
+	p := &Player{PlayerId: id, CombatTag: tag, X: x, Y: y, Color: color, Timestamp: time.Now().UnixNano() / 1e6}
+	playersLock.Lock()
+	players[id] = p
+	playersLock.Unlock()
+	return p
+}
+
+// recorder packs and decodes snapshots for a viewer. By default it isn't a
+// player itself, so it is sent every player whatever their tags.
+type recorder struct {
+	t       *testing.T
+	viewer  string
+	sub     *Subscriber
+	decoder *snapshotDecoder
+	// What each snapshot decoded to, its changed players and its length
+	decoded [][]fixturePlayer
+	changed [][]string
+	lengths []int
+}
+
+func newRecorder(t *testing.T) *recorder {
+	return &recorder{
+		t:       t,
+		viewer:  "viewer",
+		sub:     &Subscriber{Version: 2, History: make(map[uint16]map[uint16]snapshotEntry), Ack: -1},
+		decoder: newSnapshotDecoder(),
+	}
+}
+
+func (r *recorder) push(acknowledge bool) ([]byte, []fixturePlayer) {
+	packet, _ := packSnapshot(r.viewer, r.sub)
+	if len(packet) > MaxSnapshot {
+		r.t.Fatalf("snapshot of %d bytes", len(packet))
+	}
+	state, err := r.decoder.decode(packet)
+	if err != nil || state == nil {
+		r.t.Fatalf("snapshot not decoded: %v", err)
+	}
+	if acknowledge {
+		r.sub.Ack = int(r.decoder.latest)
+	}
+	r.decoded = append(r.decoded, shown(state))
+	r.changed = append(r.changed, r.decoder.changed)
+	r.lengths = append(r.lengths, len(packet))
+	return packet, shown(state)
+}
+
+// expected returns the players the viewer should see, as the servers pick them.
+func expected(viewer string) []fixturePlayer {
+	playersLock.RLock()
+	defer playersLock.RUnlock()
+	var combatTag string
+	if p, exists := players[viewer]; exists {
+		combatTag = p.CombatTag
+	}
+	list := []fixturePlayer{}
+	for _, p := range players {
+		if p.PlayerId == viewer || (combatTag != "" && p.CombatTag != combatTag) {
+			continue
+		}
+		color := "green"
+		if strings.ToLower(p.Color) == "red" {
+			color = "red"
+		}
+		list = append(list, fixturePlayer{p.PlayerId, p.CombatTag, p.X >> QuantizeShift << QuantizeShift,
+			p.Y >> QuantizeShift << QuantizeShift, p.VelocityX, p.VelocityY, color})
+	}
+	sort.Slice(list, func(i, j int) bool { return list[i].PlayerId < list[j].PlayerId })
+	return list
+}
+
+// TestEncodeFixtureScenarios packs the scenarios behind the fixtures. Go
+// visits maps in random order, so the entries may come in another order
+// than Python's, but they must decode to the same players and take the
+// same number of bytes.
+func TestEncodeFixtureScenarios(t *testing.T) {
+	cases := loadFixtures(t)
+	scenarios := map[string]func(r *recorder){
+		"deltas": func(r *recorder) {
+			setPlayer("a", 100, 201, "green", "alpha")
+			b := setPlayer("b", -40, 7, "red", "")
+			b.VelocityX, b.VelocityY = -3, 250
+			playersLock.Lock()
+			nextSession = 300
+			playersLock.Unlock()
+			setPlayer("ünicöde-ç", 5000, -7000, "red", "tëst")
+			r.push(true)
+
+			playersLock.Lock()
+			players["a"].X += 200000
+			players["b"].VelocityX = 64
+			players["ünicöde-ç"].CombatTag = "beta"
+			playersLock.Unlock()
+			setPlayer("d", 1, 1, "green", "")
+			r.push(true)
+
+			playersLock.Lock()
+			delete(players, "b")
+			players["a"].Color = "red"
+			playersLock.Unlock()
+			r.push(false)
+			playersLock.Lock()
+			players["a"].Y -= 1000
+			playersLock.Unlock()
+			r.push(false)
+			r.push(true)
+		},
+		"reused_session": func(r *recorder) {
+			a := setPlayer("a", 10, 10, "green", "x")
+			a.VelocityX = 5
+			r.push(true)
+			playersLock.Lock()
+			session := sessions["a"]
+			delete(players, "a")
+			delete(sessions, "a")
+			delete(sessionPlayers, session)
+			nextSession = session
+			playersLock.Unlock()
+			setPlayer("b", 30, 30, "red", "")
+			r.push(true)
+		},
+	}
+
+	for _, c := range cases {
+		scenario, exists := scenarios[c.Name]
+		if !exists {
+			continue
+		}
+		resetServer()
+		r := newRecorder(t)
+		scenario(r)
+		if len(r.decoded) != len(c.Packets) {
+			t.Fatalf("%s: %d snapshots, expected %d", c.Name, len(r.decoded), len(c.Packets))
+		}
+		for i, p := range c.Packets {
+			if !reflect.DeepEqual(r.decoded[i], *p.Players) {
+				t.Errorf("%s packet %d: players %v, expected %v", c.Name, i, r.decoded[i], *p.Players)
+			}
+			if !reflect.DeepEqual(r.changed[i], p.Changed) {
+				t.Errorf("%s packet %d: changed %v, expected %v", c.Name, i, r.changed[i], p.Changed)
+			}
+			if r.lengths[i] != len(p.Bytes)/2 {
+				t.Errorf("%s packet %d: %d bytes, expected %d", c.Name, i, r.lengths[i], len(p.Bytes)/2)
+			}
+		}
+	}
+}
+
+// subscribedRecorder views as a player with the tag "test", like the
+// cases in test_snapshot.py.
+func subscribedRecorder(t *testing.T) *recorder {
+	resetServer()
+	setPlayer("subscriber", 0, 0, "red", "test")
+	r := newRecorder(t)
+	r.viewer = "subscriber"
+	return r
+}
+
+func checkShown(t *testing.T, got []fixturePlayer, viewer string) {
+	t.Helper()
+	if want := expected(viewer); !reflect.DeepEqual(got, want) {
+		t.Errorf("players %v, expected %v", got, want)
+	}
+}
+
+func TestFullSnapshot(t *testing.T) {
+	r := subscribedRecorder(t)
+	setPlayer("a", 100, 201, "green", "test")
+	setPlayer("b", -40, 7, "red", "test")
+	packet, got := r.push(true)
+	if packet[3] != 0 {
+		t.Errorf("distance %d, expected no base", packet[3])
+	}
+	checkShown(t, got, r.viewer)
+	if len(got) != 2 {
+		t.Errorf("%d players, expected 2", len(got))
+	}
+}
+
+func TestDeltasAgainstAcknowledgedBase(t *testing.T) {
+	r := subscribedRecorder(t)
+	for i := int32(0); i < 10; i++ {
+		setPlayer(fmt.Sprintf("p%d", i), i*10, i*20, "red", "test")
+	}
+	r.push(true)
+
+	playersLock.Lock()
+	players["p3"].X += 50
+	players["p4"].VelocityY = -3
+	players["p5"].Color = "green"
+	players["p6"].CombatTag = "other"
+	playersLock.Unlock()
+	packet, got := r.push(true)
+	if packet[3] != 1 {
+		t.Errorf("distance %d, expected 1", packet[3])
+	}
+	checkShown(t, got, r.viewer)
+	if !reflect.DeepEqual(r.decoder.changed, []string{"p3", "p4", "p5"}) {
+		t.Errorf("changed %v", r.decoder.changed)
+	}
+
+	// Nothing changed: no entries at all
+	packet, got = r.push(true)
+	if count, _ := binary.Uvarint(packet[12:]); count != 0 {
+		t.Errorf("%d entries, expected none", count)
+	}
+	checkShown(t, got, r.viewer)
+}
+
+func TestUnacknowledgedSnapshotsStayOnOldBase(t *testing.T) {
+	r := subscribedRecorder(t)
+	setPlayer("a", 0, 0, "red", "test")
+	r.push(true)
+	for step := int32(1); step < 5; step++ {
+		playersLock.Lock()
+		players["a"].X = step * 10
+		playersLock.Unlock()
+		packet, got := r.push(false)
+		if int32(packet[3]) != step {
+			t.Errorf("distance %d, expected %d", packet[3], step)
+		}
+		checkShown(t, got, r.viewer)
+	}
+}
+
+func TestBaseOutOfHistory(t *testing.T) {
+	r := subscribedRecorder(t)
+	setPlayer("a", 0, 0, "red", "test")
+	r.push(true)
+	for i := 0; i < SnapshotHistory; i++ {
+		r.push(false)
+	}
+	playersLock.Lock()
+	players["a"].Y = 64
+	playersLock.Unlock()
+	packet, got := r.push(true)
+	if packet[3] != 0 {
+		t.Errorf("distance %d, expected no base", packet[3])
+	}
+	checkShown(t, got, r.viewer)
+}
+
+func TestRemoval(t *testing.T) {
+	r := subscribedRecorder(t)
+	setPlayer("a", 0, 0, "red", "test")
+	setPlayer("b", 2, 2, "red", "test")
+	r.push(true)
+	playersLock.Lock()
+	delete(players, "a")
+	playersLock.Unlock()
+	_, got := r.push(true)
+	checkShown(t, got, r.viewer)
+	if len(got) != 1 || got[0].PlayerId != "b" {
+		t.Errorf("players %v, expected only b", got)
+	}
+}
+
+func TestReusedSession(t *testing.T) {
+	r := subscribedRecorder(t)
+	a := setPlayer("a", 10, 10, "green", "test")
+	a.VelocityX = 5
+	r.push(true)
+
+	// a leaves and cleanup frees its session before the client hears of it
+	playersLock.Lock()
+	session := sessions["a"]
+	delete(players, "a")
+	delete(sessions, "a")
+	delete(sessionPlayers, session)
+	nextSession = session
+	playersLock.Unlock()
+	setPlayer("b", 30, 30, "red", "test")
+	_, got := r.push(true)
+
+	playersLock.RLock()
+	reused := sessions["b"]
+	playersLock.RUnlock()
+	if reused != session {
+		t.Errorf("b has session %d, expected %d", reused, session)
+	}
+	checkShown(t, got, r.viewer)
+	if len(got) != 1 || got[0].PlayerId != "b" {
+		t.Errorf("players %v, expected only b", got)
+	}
+}
+
+func TestOverflow(t *testing.T) {
+	r := subscribedRecorder(t)
+	for i := int32(0); i < 400; i++ {
+		setPlayer(fmt.Sprintf("player-%04d-%s", i, strings.Repeat("x", 20)), i*4, i*6, "red", "test")
+	}
+	pushes := 0
+	for {
+		_, got := r.push(true)
+		pushes++
+		if reflect.DeepEqual(got, expected(r.viewer)) {
+			break
+		}
+		if pushes == 20 {
+			t.Fatal("players never caught up")
+		}
+	}
+	if pushes == 1 {
+		t.Error("all players fit in one snapshot")
+	}
+
+	// Everyone moves: the ones left out stay where they were until sent
+	playersLock.Lock()
+	for _, p := range players {
+		p.X += 2
+	}
+	playersLock.Unlock()
+	for i := 0; ; i++ {
+		_, got := r.push(true)
+		if reflect.DeepEqual(got, expected(r.viewer)) {
+			break
+		}
+		if i == 20 {
+			t.Fatal("players never caught up")
+		}
+	}
+}
+
+func listen(t *testing.T) *net.UDPConn {
+	conn, err := net.ListenUDP("udp", &net.UDPAddr{IP: net.IPv4(127, 0, 0, 1)})
+	if err != nil {
+		t.Fatal(err)
+	}
+	return conn
+}
+
+// receive returns the next packet that matches, skipping others such as pushes.
+func receive(t *testing.T, conn *net.UDPConn, matches func([]byte) bool) []byte {
+	t.Helper()
+	buf := make([]byte, 2048)
+	for i := 0; i < 100; i++ {
+		conn.SetReadDeadline(time.Now().Add(time.Second))
+		n, _, err := conn.ReadFromUDP(buf)
+		if err != nil {
+			t.Fatal(err)
+		}
+		if matches(buf[:n]) {
+			return append([]byte(nil), buf[:n]...)
+		}
+	}
+	t.Fatal("no matching packet")
+	return nil
+}
+
+func startsWith(magic uint32) func([]byte) bool {
+	return func(p []byte) bool { return len(p) >= 4 && binary.BigEndian.Uint32(p) == magic }
+}
+
+func subscriber(id string) Subscriber {
+	subscribersLock.Lock()
+	defer subscribersLock.Unlock()
+	if s, exists := subscribers[id]; exists {
+		return *s
+	}
+	return Subscriber{}
+}
+
+func TestSubscription(t *testing.T) {
+	resetServer()
+	server, client, other := listen(t), listen(t), listen(t)
+	defer server.Close()
+	defer client.Close()
+	defer other.Close()
+	clientAddr := client.LocalAddr().(*net.UDPAddr)
+	otherAddr := other.LocalAddr().(*net.UDPAddr)
+
+	handlePlayerListRequest([]byte("SUBSCRIBE2 10 p1\n"), clientAddr, server)
+	ack := receive(t, client, startsWith(SubscriptionAckV2))
+	playersLock.RLock()
+	session := sessions["p1"]
+	playersLock.RUnlock()
+	if len(ack) != 12 || binary.BigEndian.Uint32(ack[4:]) != MinPushIntervalMs ||
+		binary.BigEndian.Uint32(ack[8:]) != uint32(session) {
+		t.Errorf("acknowledged with %x, session %d", ack, session)
+	}
+	if s := subscriber("p1"); s.Version != 2 || s.IntervalMs != MinPushIntervalMs || s.Ack != -1 {
+		t.Errorf("subscriber %+v", s)
+	}
+
+	handlePlayerListRequest([]byte("SUBSCRIBE 5000 p2"), clientAddr, server)
+	ack = receive(t, client, startsWith(SubscriptionAck))
+	if len(ack) != 8 || binary.BigEndian.Uint32(ack[4:]) != MaxPushIntervalMs {
+		t.Errorf("acknowledged with %x", ack)
+	}
+
+	// Renewing keeps the ack, unless it comes from another client
+	subscribersLock.Lock()
+	subscribers["p1"].Ack = 3
+	subscribersLock.Unlock()
+	handlePlayerListRequest([]byte("SUBSCRIBE2 100 p1"), clientAddr, server)
+	receive(t, client, startsWith(SubscriptionAckV2))
+	if s := subscriber("p1"); s.Ack != 3 || s.IntervalMs != 100 {
+		t.Errorf("renewed subscriber %+v", s)
+	}
+	handlePlayerListRequest([]byte("SUBSCRIBE2 100 p1"), otherAddr, server)
+	receive(t, other, startsWith(SubscriptionAckV2))
+	if s := subscriber("p1"); s.Ack != -1 || s.Addr.String() != otherAddr.String() {
+		t.Errorf("subscriber from another client %+v", s)
+	}
+
+	handlePlayerListRequest([]byte("SUBSCRIBE 100 p1"), clientAddr, server)
+	receive(t, client, startsWith(SubscriptionAck))
+	if s := subscriber("p1"); s.Version != 1 {
+		t.Errorf("subscriber %+v, expected version 1", s)
+	}
+
+	handlePlayerListRequest([]byte("UNSUBSCRIBE p1"), clientAddr, server)
+	if s := subscriber("p1"); s.Version != 0 {
+		t.Errorf("still subscribed: %+v", s)
+	}
+}
+
+func TestNumberedRequest(t *testing.T) {
+	resetServer()
+	server, client := listen(t), listen(t)
+	defer server.Close()
+	defer client.Close()
+	clientAddr := client.LocalAddr().(*net.UDPAddr)
+	setPlayer("p1", 0, 0, "red", "t")
+	setPlayer("p2", 4, 6, "green", "t")
+	setPlayer("p3", 8, 8, "red", "u")
+
+	// The count of a plain list can't be mistaken for NumberedReply
+	anyPacket := func([]byte) bool { return true }
+	handlePlayerListRequest([]byte("REQ 7 p1"), clientAddr, server)
+	reply := receive(t, client, anyPacket)
+	if binary.BigEndian.Uint32(reply) != NumberedReply || binary.BigEndian.Uint32(reply[4:]) != 7 {
+		t.Fatalf("reply %x", reply[:8])
+	}
+	if count := binary.BigEndian.Uint32(reply[8:]); count != 1 || strings.TrimSpace(string(reply[20:56])) != "p2" {
+		t.Errorf("%d players, first %q", count, reply[20:56])
+	}
+
+	handlePlayerListRequest([]byte("REQ 2147483647 p1"), clientAddr, server)
+	if reply = receive(t, client, anyPacket); binary.BigEndian.Uint32(reply[4:]) != 2147483647 {
+		t.Errorf("reply %x", reply[:8])
+	}
+
+	// Bad seqs are ignored, so the next reply is to the plain request
+	handlePlayerListRequest([]byte("REQ 2147483648 p1"), clientAddr, server)
+	handlePlayerListRequest([]byte("REQ -1 p1"), clientAddr, server)
+	handlePlayerListRequest([]byte("REQ p1"), clientAddr, server)
+	handlePlayerListRequest([]byte("p1"), clientAddr, server)
+	if reply = receive(t, client, anyPacket); binary.BigEndian.Uint32(reply) != 1 {
+		t.Errorf("reply %x, expected a plain list of 1", reply[:8])
+	}
+}
+
+func TestCompactPositionUpdate(t *testing.T) {
+	resetServer()
+	server, client := listen(t), listen(t)
+	defer server.Close()
+	defer client.Close()
+	clientAddr := client.LocalAddr().(*net.UDPAddr)
+	handlePlayerListRequest([]byte("SUBSCRIBE2 100 p1"), clientAddr, server)
+	receive(t, client, startsWith(SubscriptionAckV2))
+	playersLock.RLock()
+	session := sessions["p1"]
+	playersLock.RUnlock()
+
+	update := func(ack uint64, x, y, vx, vy int64, color byte) []byte {
+		buf := new(bytes.Buffer)
+		buf.WriteByte(CompactMarker)
+		binary.Write(buf, binary.BigEndian, session)
+		writeUvarint(buf, ack)
+		for _, v := range []int64{x, y, vx, vy} {
+			writeVarint(buf, v)
+		}
+		buf.WriteByte(color)
+		return buf.Bytes()
+	}
+
+	handleCompactPositionUpdate(update(5, 300, -20, 3, -1, ColorRed), clientAddr)
+	playersLock.RLock()
+	p := *players["p1"]
+	playersLock.RUnlock()
+	if p.X != 300 || p.Y != -20 || p.VelocityX != 3 || p.VelocityY != -1 || p.Color != "red" {
+		t.Errorf("player %+v", p)
+	}
+	if s := subscriber("p1"); s.Ack != 4 {
+		t.Errorf("ack %d, expected 4", s.Ack)
+	}
+
+	// Truncated: nothing changes
+	packet := update(9, 1, 1, 0, 0, ColorGreen)
+	handleCompactPositionUpdate(packet[:len(packet)-1], clientAddr)
+	playersLock.RLock()
+	p = *players["p1"]
+	playersLock.RUnlock()
+	if p.X != 300 || subscriber("p1").Ack != 4 {
+		t.Errorf("truncated update applied: %+v", p)
+	}
+
+	// Zero asks for a snapshot without a base
+	handleCompactPositionUpdate(update(0, 300, -20, 3, -1, ColorGreen), clientAddr)
+	if s := subscriber("p1"); s.Ack != -1 {
+		t.Errorf("ack %d, expected -1", s.Ack)
+	}
+}
+
+// TestPush runs pushRoutine, which keeps running, so it comes last.
+func TestPush(t *testing.T) {
+	resetServer()
+	server, client := listen(t), listen(t)
+	defer server.Close()
+	defer client.Close()
+	clientAddr := client.LocalAddr().(*net.UDPAddr)
+	setPlayer("p1", 0, 0, "red", "t")
+	setPlayer("p2", 4, 6, "green", "t")
+	setPlayer("p3", 8, 8, "red", "u")
+	go pushRoutine(server)
+
+	handlePlayerListRequest([]byte("SUBSCRIBE 50 p1"), clientAddr, server)
+	list := receive(t, client, func(p []byte) bool { return len(p) >= 12 && binary.BigEndian.Uint32(p) == 1 })
+	if id := strings.TrimSpace(string(list[12:48])); id != "p2" {
+		t.Errorf("pushed %q, expected p2", id)
+	}
+
+	handlePlayerListRequest([]byte("SUBSCRIBE2 50 p1"), clientAddr, server)
+	receive(t, client, startsWith(SubscriptionAckV2))
+	snapshot := receive(t, client, func(p []byte) bool { return len(p) > 0 && p[0] == CompactMarker })
+	state, err := newSnapshotDecoder().decode(snapshot)
+	if err != nil {
+		t.Fatal(err)
+	}
+	checkShown(t, shown(state), "p1")
+
+	// Dropped when the lease runs out
+	subscribersLock.Lock()
+	subscribers["p1"].Expires = time.Now().UnixNano()/1e6 - 1
+	subscribersLock.Unlock()
+	for i := 0; subscriber("p1").Version != 0; i++ {
+		if i == 100 {
+			t.Fatal("subscription didn't expire")
+		}
+		time.Sleep(10 * time.Millisecond)
+	}
+	resetServer()
+}
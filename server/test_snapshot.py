@@ -0,0 +1,342 @@
+"""Round trips of hybrid_server's compact snapshots through a decoder that
+follows the client's SnapshotDecoder.java
+
+Run with: python3 -m unittest test_snapshot
+
+testdata/snapshots.json holds snapshots packed by the scenarios at the end
+and the players each should decode to. The client's SnapshotCheck and
+main_test.go decode the same bytes. Regenerate it with:
+python3 test_snapshot.py --write-fixtures
+"""
+import json
+import os
+import struct
+import sys
+import unittest
+from unittest import mock
+
+import hybrid_server as server
+from hybrid_server import (COMPACT_MARKER, SNAPSHOT_HISTORY, QUANTIZE_SHIFT, MAX_SNAPSHOT,
+                           REMOVED, NEW, POSITION, VELOCITY, COLOR, TAG, COLOR_RED, COLOR_GREEN,
+                           read_varint, read_zigzag)
+
+SUBSCRIBER = 'subscriber'
+COMBAT_TAG = 'test'
+FIXTURES = os.path.join(os.path.dirname(os.path.abspath(__file__)), 'testdata', 'snapshots.json')
+FIXTURE_TIME_MS = 1_700_000_000_000
+
+
+def read_string(data, offset):
+    length = data[offset]
+    offset += 1
+    return data[offset:offset + length].decode('utf-8'), offset + length
+
+
+class Decoder:
+    """Rebuilds the players in each snapshot from the one it was based on"""
+
+    def __init__(self):
+        self.history = {}  # seq -> {session: [id, tag, x, y, vx, vy, color]}
+        self.latest = None
+        self.server_time = None
+        self.changed = set()  # Player IDs whose entries in the latest snapshot changed them
+
+    def decode(self, packet):
+        """Returns the players, or None if the base is gone"""
+        assert packet[0] == COMPACT_MARKER
+        seq = struct.unpack('!H', packet[1:3])[0]
+        distance, offset = read_varint(packet, 3)
+        server_time = struct.unpack('!Q', packet[offset:offset + 8])[0]
+        offset += 8
+        if distance == 0:
+            state = {}
+        else:
+            base = self.history.get((seq - distance) & 0xFFFF)
+            if distance >= SNAPSHOT_HISTORY or base is None:
+                return None
+            state = {session: list(entry) for session, entry in base.items()}
+
+        changed = set()
+        count, offset = read_varint(packet, offset)
+        for _ in range(count):
+            session, offset = read_varint(packet, offset)
+            flags = packet[offset]
+            offset += 1
+            if flags & REMOVED:
+                state.pop(session, None)
+                continue
+            if flags & NEW:
+                player_id, offset = read_string(packet, offset)
+                state[session] = [player_id, '', 0, 0, 0, 0, 0]
+            entry = state[session]
+            if flags & POSITION:
+                dx, offset = read_zigzag(packet, offset)
+                dy, offset = read_zigzag(packet, offset)
+                entry[2] += dx
+                entry[3] += dy
+            if flags & VELOCITY:
+                dx, offset = read_zigzag(packet, offset)
+                dy, offset = read_zigzag(packet, offset)
+                entry[4] += dx
+                entry[5] += dy
+            if flags & COLOR:
+                entry[6] = packet[offset]
+                offset += 1
+            if flags & TAG:
+                entry[1], offset = read_string(packet, offset)
+            if flags & (NEW | POSITION | VELOCITY | COLOR | TAG):
+                changed.add(entry[0])
+        assert offset == len(packet), "trailing bytes"
+
+        self.history[seq] = state
+        self.history.pop((seq - SNAPSHOT_HISTORY) & 0xFFFF, None)
+        self.latest = seq
+        self.server_time = server_time
+        self.changed = changed
+        return state
+
+
+def fixture_players(state):
+    """Players as the client shows them, sorted by ID"""
+    return [{'playerId': e[0], 'combatTag': e[1], 'x': e[2] << QUANTIZE_SHIFT, 'y': e[3] << QUANTIZE_SHIFT,
+             'velocityX': e[4], 'velocityY': e[5], 'color': 'red' if e[6] == COLOR_RED else 'green'}
+            for e in sorted(state.values())]
+
+
+def reset_server():
+    server.players.clear()
+    server.sessions.clear()
+    server.session_players.clear()
+    server.next_session = 1
+
+
+def set_player(player_id, x, y, color='red', tag='', velocity=(0, 0)):
+    server.players[player_id] = {'playerId': player_id, 'combatTag': tag, 'x': x, 'y': y,
+                                 'velocityX': velocity[0], 'velocityY': velocity[1], 'color': color}
+
+
+class Recorder:
+    """Packs snapshots for a subscriber that isn't a player itself, so it is
+    sent every player whatever their tags, at a fixed server time"""
+
+    def __init__(self):
+        self.subscriber = {'version': 2, 'seq': 0, 'history': {}, 'ack': None}
+        self.decoder = Decoder()
+        self.packets = []
+
+    def push(self, acknowledge=True):
+        now_ns = (FIXTURE_TIME_MS + 50 * len(self.packets)) * 1_000_000
+        with mock.patch.object(server.time, 'time_ns', return_value=now_ns):
+            packet, _ = server.pack_snapshot('viewer', self.subscriber)
+        state = self.decoder.decode(packet)
+        if acknowledge:
+            self.subscriber['ack'] = self.decoder.latest
+        self.packets.append({'bytes': bytes(packet).hex(), 'serverTime': self.decoder.server_time,
+                             'players': fixture_players(state), 'changed': sorted(self.decoder.changed)})
+
+
+def record_deltas():
+    """Deltas against acknowledged and older bases, large and negative
+    values, two byte session IDs, UTF-8, a tag change and a removal"""
+    reset_server()
+    r = Recorder()
+    set_player('a', 100, 201, 'green', 'alpha')
+    set_player('b', -40, 7, velocity=(-3, 250))
+    server.next_session = 300
+    set_player('\u00fcnic\u00f6de-\u00e7', 5000, -7000, tag='t\u00ebst')
+    r.push()
+
+    server.players['a']['x'] += 200000
+    server.players['b']['velocityX'] = 64
+    server.players['\u00fcnic\u00f6de-\u00e7']['combatTag'] = 'beta'
+    set_player('d', 1, 1, 'green')
+    r.push()
+
+    del server.players['b']
+    server.players['a']['color'] = 'red'
+    r.push(acknowledge=False)
+    server.players['a']['y'] -= 1000
+    r.push(acknowledge=False)
+    r.push()
+    return r.packets
+
+
+def record_reused_session():
+    """A session freed by a player that left, then given to another"""
+    reset_server()
+    r = Recorder()
+    set_player('a', 10, 10, 'green', 'x', velocity=(5, 0))
+    r.push()
+    session = server.sessions['a']
+    del server.players['a']
+    server.session_players.pop(server.sessions.pop('a'))
+    server.next_session = session
+    set_player('b', 30, 30)
+    r.push()
+    return r.packets
+
+
+def record_fixtures():
+    deltas = record_deltas()
+    return [
+        {'name': 'deltas', 'packets': deltas},
+        {'name': 'reused_session', 'packets': record_reused_session()},
+        # Based on a snapshot the decoder never saw
+        {'name': 'missing_base', 'packets': [dict(deltas[1], players=None, changed=[])]},
+    ]
+
+
+class SnapshotTest(unittest.TestCase):
+
+    def setUp(self):
+        reset_server()
+        self.subscriber = {'version': 2, 'seq': 0, 'history': {}, 'ack': None}
+        self.decoder = Decoder()
+        self.add_player(SUBSCRIBER, 0, 0)
+
+    def add_player(self, player_id, x, y, color='red'):
+        server.players[player_id] = {'playerId': player_id, 'combatTag': COMBAT_TAG, 'x': x, 'y': y,
+                                     'velocityX': 0, 'velocityY': 0, 'color': color}
+
+    def expected(self):
+        """What the subscriber should see, by player ID"""
+        return {pid: [pid, p['combatTag'], p['x'] >> QUANTIZE_SHIFT, p['y'] >> QUANTIZE_SHIFT,
+                      p['velocityX'], p['velocityY'], COLOR_RED if p['color'] == 'red' else COLOR_GREEN]
+                for pid, p in server.players.items()
+                if pid != SUBSCRIBER and p['combatTag'] == COMBAT_TAG}
+
+    def push(self, acknowledge=True):
+        """Pack and decode a snapshot, acknowledging it like the client would"""
+        packet, _ = server.pack_snapshot(SUBSCRIBER, self.subscriber)
+        self.assertLessEqual(len(packet), MAX_SNAPSHOT)
+        state = self.decoder.decode(packet)
+        self.assertIsNotNone(state)
+        if acknowledge:
+            self.subscriber['ack'] = self.decoder.latest
+        return packet, {entry[0]: entry for entry in state.values()}
+
+    def test_full_snapshot(self):
+        self.add_player('a', 100, 201, 'green')
+        self.add_player('b', -40, 7)
+        packet, state = self.push()
+        self.assertEqual(packet[3], 0)  # No base
+        self.assertEqual(state, self.expected())
+
+    def test_deltas_against_acknowledged_base(self):
+        for i in range(10):
+            self.add_player(f'p{i}', i * 10, i * 20)
+        self.push()
+
+        server.players['p3']['x'] += 50
+        server.players['p4']['velocityY'] = -3
+        server.players['p5']['color'] = 'green'
+        server.players['p6']['combatTag'] = 'other'
+        packet, state = self.push()
+        self.assertEqual(packet[3], 1)
+        self.assertEqual(state, self.expected())
+        self.assertNotIn('p6', state)
+
+        # Nothing changed: no entries at all
+        packet, state = self.push()
+        self.assertEqual(read_varint(packet, 12)[0], 0)
+        self.assertEqual(state, self.expected())
+
+    def test_unacknowledged_snapshots_stay_on_old_base(self):
+        self.add_player('a', 0, 0)
+        self.push()
+        for step in range(1, 5):
+            server.players['a']['x'] = step * 10
+            packet, state = self.push(acknowledge=False)
+            self.assertEqual(packet[3], step)
+            self.assertEqual(state, self.expected())
+
+    def test_base_out_of_history(self):
+        self.add_player('a', 0, 0)
+        self.push()
+        for _ in range(SNAPSHOT_HISTORY):
+            self.push(acknowledge=False)
+        server.players['a']['y'] = 64
+        packet, state = self.push()
+        self.assertEqual(packet[3], 0)
+        self.assertEqual(state, self.expected())
+
+    def test_removal(self):
+        self.add_player('a', 0, 0)
+        self.add_player('b', 2, 2)
+        self.push()
+        del server.players['a']
+        packet, state = self.push()
+        self.assertEqual(state, self.expected())
+        self.assertNotIn('a', state)
+
+    def test_reused_session(self):
+        self.add_player('a', 10, 10, 'green')
+        server.players['a']['velocityX'] = 5
+        self.push()
+        session = server.sessions['a']
+
+        # 'a' leaves and cleanup frees its session before the client hears of it
+        del server.players['a']
+        server.session_players.pop(server.sessions.pop('a'))
+        server.next_session = session
+        self.add_player('b', 30, 30)
+        packet, state = self.push()
+        self.assertEqual(server.sessions['b'], session)
+        self.assertEqual(state, self.expected())
+        self.assertEqual(set(state), {'b'})
+
+    def test_overflow(self):
+        for i in range(400):
+            self.add_player(f'player-{i:04d}-{"x" * 20}', i * 4, i * 6)
+        pushes = 0
+        while True:
+            packet, state = self.push()
+            pushes += 1
+            if state == self.expected():
+                break
+            self.assertLess(pushes, 20, "players never caught up")
+        self.assertGreater(pushes, 1)
+
+        # Everyone moves: the ones left out stay where they were until sent
+        for p in server.players.values():
+            p['x'] += 2
+        packet, state = self.push()
+        expected = self.expected()
+        for pid, entry in state.items():
+            self.assertIn(entry[2], (expected[pid][2] - 1, expected[pid][2]))
+        for _ in range(20):
+            if state == self.expected():
+                break
+            packet, state = self.push()
+        self.assertEqual(state, self.expected())
+
+
+    def test_fixtures_decode(self):
+        with open(FIXTURES, encoding='utf-8') as f:
+            cases = json.load(f)
+        for case in cases:
+            decoder = Decoder()
+            for i, fixture in enumerate(case['packets']):
+                with self.subTest(case=case['name'], packet=i):
+                    state = decoder.decode(bytes.fromhex(fixture['bytes']))
+                    if fixture['players'] is None:
+                        self.assertIsNone(state)
+                        continue
+                    self.assertEqual(fixture_players(state), fixture['players'])
+                    self.assertEqual(decoder.server_time, fixture['serverTime'])
+                    self.assertEqual(sorted(decoder.changed), fixture['changed'])
+
+    def test_fixtures_encode(self):
+        with open(FIXTURES, encoding='utf-8') as f:
+            cases = json.load(f)
+        self.assertEqual(record_fixtures(), cases)
+
+
+if __name__ == '__main__':
+    if sys.argv[1:] == ['--write-fixtures']:
+        os.makedirs(os.path.dirname(FIXTURES), exist_ok=True)
+        with open(FIXTURES, 'w', encoding='utf-8') as f:
+            json.dump(record_fixtures(), f, indent=2, ensure_ascii=False)
+            f.write('\n')
+    else:
+        unittest.main()
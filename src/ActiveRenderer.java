@@ -0,0 +1,178 @@
+package whg;
+
+import java.awt.DisplayMode;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Toolkit;
+import java.awt.image.VolatileImage;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Draws the level on its own thread into a {@link VolatileImage} back buffer
+ * and copies it straight to the screen, bypassing the Swing repaint queue.
+ * Other screens, and every screen when this renderer is unavailable, still
+ * go through {@link Game#paintComponent(Graphics)}.
+ *
+ * Enabled with -Dwhg.activeRendering=true. With -Dwhg.vsync=true frames are
+ * paced to the display's refresh interval instead of the simulation rate.
+ */
+public class ActiveRenderer implements Runnable {
+
+	/** Refresh rate assumed when the display does not report one. */
+	private static final int DEFAULT_REFRESH_RATE = 60;
+
+	private final Game game;
+
+	/** True if frames should be paced to the display refresh rate. */
+	private final boolean vsync;
+
+	private VolatileImage backBuffer;
+
+	private Thread thread;
+
+	private volatile boolean running = false;
+
+	/** Cleared if drawing fails, so the game falls back to passive painting. */
+	private volatile boolean available = true;
+
+	private volatile boolean frameRequested = false;
+
+	/** Time between presented frames when vsync pacing is on. */
+	private long refreshNanos;
+
+	/** When the last frame was presented. */
+	private long lastPresentNanos;
+
+	public ActiveRenderer(Game game, boolean vsync) {
+		this.game = game;
+		this.vsync = vsync;
+	}
+
+
+
+	/** @return true if active rendering was requested on the command line */
+	public static boolean isRequested() {
+		return Boolean.getBoolean("whg.activeRendering") && !GraphicsEnvironment.isHeadless();
+	}
+
+
+
+	public synchronized void start() {
+		if (running) return;
+		running = true;
+		refreshNanos = 1_000_000_000L / refreshRate();
+		thread = new Thread(this, "Active Renderer");
+		thread.setDaemon(true);
+		thread.start();
+		Game.easyLog(Game.logger, Level.INFO, "Active rendering started"
+				+ (vsync ? " (paced to " + refreshRate() + " Hz)" : ""));
+	}
+
+
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+
+
+	/** @return true if this renderer draws the given game state */
+	public boolean handles(int gameState) {
+		return running && available && gameState == Game.LEVEL;
+	}
+
+
+
+	/** Ask for a new frame. Requests made while a frame is pending are merged. */
+	public void requestFrame() {
+		frameRequested = true;
+		Thread t = thread;
+		if (t != null) LockSupport.unpark(t);
+	}
+
+
+
+	public void run() {
+		while (running) {
+			if (!frameRequested) {
+				LockSupport.park(this);
+				continue;
+			}
+			frameRequested = false;
+
+			if (vsync) waitForRefresh();
+
+			try {
+				renderFrame();
+			} catch (RuntimeException e) {
+				available = false;
+				Game.easyLog(Game.logger, Level.SEVERE, "Active rendering failed, falling back to repaint:\n"
+						+ Game.getStringFromStackTrace(e));
+				game.repaint();
+			}
+		}
+	}
+
+
+
+	private void renderFrame() {
+		GraphicsConfiguration gc = game.getGraphicsConfiguration();
+		int width = game.getWidth();
+		int height = game.getHeight();
+		if (gc == null || width <= 0 || height <= 0) return;
+
+		do {
+			if (backBuffer == null || backBuffer.getWidth() != width || backBuffer.getHeight() != height
+					|| backBuffer.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE) {
+				if (backBuffer != null) backBuffer.flush();
+				backBuffer = gc.createCompatibleVolatileImage(width, height);
+			}
+
+			Graphics2D g2 = backBuffer.createGraphics();
+			synchronized (game.stateLock) {
+				if (!handles(Game.gameState)) {
+					g2.dispose();
+					game.repaint();
+					return;
+				}
+				g2.setColor(game.getBackground());
+				g2.fillRect(0, 0, width, height);
+				game.renderFrame(g2);
+			}
+
+			Graphics screen = game.getGraphics();
+			if (screen != null) {
+				screen.drawImage(backBuffer, 0, 0, null);
+				screen.dispose();
+			}
+			Toolkit.getDefaultToolkit().sync();
+		} while (backBuffer.contentsLost());
+
+		lastPresentNanos = System.nanoTime();
+	}
+
+
+
+	/** Sleep until one refresh interval has passed since the last frame. */
+	private void waitForRefresh() {
+		long wait = lastPresentNanos + refreshNanos - System.nanoTime();
+		while (wait > 0 && running) {
+			LockSupport.parkNanos(wait);
+			wait = lastPresentNanos + refreshNanos - System.nanoTime();
+		}
+	}
+
+
+
+	private int refreshRate() {
+		GraphicsConfiguration gc = game.getGraphicsConfiguration();
+		if (gc == null) return DEFAULT_REFRESH_RATE;
+		int rate = gc.getDevice().getDisplayMode().getRefreshRate();
+		return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_RATE : rate;
+	}
+
+}
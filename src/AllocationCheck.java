@@ -0,0 +1,71 @@
+package whg;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * Plays a level without a window and reports how much each tick and frame
+ * phase allocates, failing if any phase goes over its budget. Run it from
+ * the build directory:
+ *
+ * <pre>
+ * java -Dwhg.allocBudget=tiles:0,coins_and_dots:0 -cp build/classes:... whg.AllocationCheck [level] [frames]
+ * </pre>
+ *
+ * Budgets are bytes per measurement, see {@link AllocationMeter#checkBudgets(String)}.
+ * The exit status is 1 if a budget was exceeded and 2 if allocations can't
+ * be measured on this JVM.
+ */
+public class AllocationCheck {
+
+	private static final int WARM_UP_FRAMES = 500;
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		int levelNum = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+		if (!AllocationMeter.enable()) {
+			System.err.println("This JVM can't measure allocations per thread");
+			System.exit(2);
+		}
+
+		Game game = Game.createHeadless(levelNum);
+		BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+
+		run(game, image, WARM_UP_FRAMES);
+		AllocationMeter.reset();
+		run(game, image, frames);
+
+		System.out.println("Level " + levelNum + ", " + frames + " frames, bytes allocated per measurement:");
+		System.out.println(String.format("%-16s %10s %10s %8s", "phase", "mean", "max", "count"));
+		for (AllocationMeter.Phase phase : AllocationMeter.Phase.values()) {
+			AllocationMeter.Stats stats = AllocationMeter.get(phase);
+			System.out.println(String.format("%-16s %10d %10d %8d",
+					phase.name().toLowerCase(), stats.getMean(), stats.getMax(), stats.getCount()));
+		}
+
+		List<String> failures = AllocationMeter.checkBudgets(System.getProperty("whg.allocBudget"));
+		for (String failure : failures) System.out.println("FAIL " + failure);
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+
+
+
+	/** One tick and one frame at a time, as the game loop would at 200 frames per second. */
+	private static void run(Game game, BufferedImage image, int frames) {
+		for (int i = 0; i < frames; i++) {
+			synchronized (game.stateLock) {
+				game.tick();
+				Graphics g = image.createGraphics();
+				try {
+					game.renderFrame(g);
+				} finally {
+					g.dispose();
+				}
+			}
+		}
+	}
+
+}
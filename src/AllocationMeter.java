@@ -0,0 +1,185 @@
+package whg;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how many bytes each phase of a tick or frame allocates on the
+ * thread that runs it, using the JVM's per-thread allocation counter. A
+ * phase is wrapped like this:
+ *
+ * <pre>
+ * long mark = AllocationMeter.begin();
+ * level.drawTiles(g);
+ * AllocationMeter.end(AllocationMeter.Phase.TILES, mark);
+ * </pre>
+ *
+ * Measuring is off unless the game runs with -Dwhg.allocStats=true, and then
+ * costs two reads of the counter per phase. The latest results for each
+ * phase are kept in rolling statistics, shown on the {@link PerfHud} and
+ * checked against budgets by {@link AllocationCheck}.
+ */
+public final class AllocationMeter {
+
+	public enum Phase {
+		/** Game.update and moving the dots, once per tick. */
+		UPDATE,
+		/** Player.update, once per tick. */
+		PLAYER_UPDATE,
+		TILES,
+		COINS_AND_DOTS,
+		REMOTE_PLAYERS,
+		/** Deaths, highscore, level number and menu text on the level screen. */
+		HUD_TEXT,
+	}
+
+	/** Measurements kept per phase. */
+	private static final int WINDOW = 256;
+
+	private static final com.sun.management.ThreadMXBean threads;
+
+	private static final Stats[] stats = new Stats[Phase.values().length];
+
+	private static boolean enabled;
+
+	static {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		threads = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+		for (int i = 0; i < stats.length; i++) stats[i] = new Stats();
+		if (Boolean.getBoolean("whg.allocStats")) enable();
+	}
+
+	private AllocationMeter() {
+	}
+
+
+
+	/** Bytes allocated by one phase over its latest measurements. */
+	public static final class Stats {
+
+		private final long[] window = new long[WINDOW];
+		private int next = 0;
+		private int size = 0;
+		private long total = 0;
+
+		private synchronized void record(long bytes) {
+			if (this.size == WINDOW) this.total -= this.window[this.next];
+			else this.size++;
+			this.window[this.next] = bytes;
+			this.total += bytes;
+			this.next = (this.next + 1) % WINDOW;
+		}
+
+
+
+		public synchronized long getMean() {
+			return this.size == 0 ? 0 : this.total / this.size;
+		}
+
+
+
+		public synchronized long getMax() {
+			long max = 0;
+			for (int i = 0; i < this.size; i++) max = Math.max(max, this.window[i]);
+			return max;
+		}
+
+
+
+		/** @return the number of measurements in the window */
+		public synchronized int getCount() {
+			return this.size;
+		}
+
+
+
+		synchronized void clear() {
+			this.next = 0;
+			this.size = 0;
+			this.total = 0;
+		}
+
+	}
+
+
+
+	/**
+	 * Start measuring.
+	 * @return false if this JVM can't count allocations per thread
+	 */
+	public static synchronized boolean enable() {
+		if (enabled) return true;
+		if (threads == null || !threads.isThreadAllocatedMemorySupported()) return false;
+		if (!threads.isThreadAllocatedMemoryEnabled()) threads.setThreadAllocatedMemoryEnabled(true);
+		enabled = true;
+		return true;
+	}
+
+
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+
+
+	/** @return a mark to pass to {@link #end(Phase, long)}, or 0 when not measuring */
+	public static long begin() {
+		return enabled ? threads.getCurrentThreadAllocatedBytes() : 0;
+	}
+
+
+
+	public static void end(Phase phase, long mark) {
+		if (enabled) stats[phase.ordinal()].record(threads.getCurrentThreadAllocatedBytes() - mark);
+	}
+
+
+
+	public static Stats get(Phase phase) {
+		return stats[phase.ordinal()];
+	}
+
+
+
+	/** Forget all measurements, for example after warming up. */
+	public static void reset() {
+		for (Stats s : stats) s.clear();
+	}
+
+
+
+	/**
+	 * Compare each phase's largest measurement with its budget.
+	 *
+	 * @param budgets such as "tiles:0,hud_text:512", in bytes per measurement
+	 * @return one line for each phase over its budget
+	 */
+	public static List<String> checkBudgets(String budgets) {
+		List<String> failures = new ArrayList<String>();
+		if (budgets == null || budgets.trim().isEmpty()) return failures;
+
+		for (String entry : budgets.split(",")) {
+			String[] parts = entry.trim().split(":");
+			Phase phase;
+			long budget;
+			try {
+				phase = Phase.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+				budget = Long.parseLong(parts[1].trim());
+			} catch (RuntimeException e) {
+				failures.add("Bad allocation budget " + entry);
+				continue;
+			}
+
+			Stats s = get(phase);
+			if (s.getCount() > 0 && s.getMax() > budget) {
+				failures.add(phase + " allocated up to " + s.getMax() + " bytes (mean " + s.getMean()
+						+ "), over its budget of " + budget);
+			}
+		}
+		return failures;
+	}
+
+}
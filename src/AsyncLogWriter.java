@@ -0,0 +1,274 @@
+package whg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Writes log messages to a file on a background thread. Callers only put
+ * the message in a ring buffer; the writer thread formats everything that
+ * is waiting and writes it in one go through a FileChannel that stays open
+ * until {@link LogSegments} says it is time to start a new segment.
+ *
+ * What happens when the buffer is full is set with -Dwhg.logOverflow,
+ * see {@link OverflowPolicy}.
+ */
+public class AsyncLogWriter implements Runnable {
+
+	public enum OverflowPolicy {
+		/** Throw away the new message. The default, so logging never holds up the game. */
+		DROP_NEWEST,
+		/** Throw away the oldest waiting message to make room. */
+		DROP_OLDEST,
+		/** Wait for the writer to make room. */
+		BLOCK,
+	}
+
+	/** A message waiting to be written. A null level means the text is written as it is. */
+	private static class Record {
+		final long time;
+		final Level level;
+		final String message;
+
+		Record(long time, Level level, String message) {
+			this.time = time;
+			this.level = level;
+			this.message = message;
+		}
+	}
+
+	/** Messages the buffer can hold. */
+	private static final int DEFAULT_CAPACITY = 4096;
+
+	/** Text written per batch before it is flushed to the channel. */
+	private static final int BATCH_CHARS = 64 * 1024;
+
+	/** How long the writer sleeps when it has nothing to do and nobody wakes it. */
+	private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final String SEPARATOR = System.lineSeparator();
+
+	private final LogSegments segments;
+
+	private final RingBuffer<Record> queue;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final LongAdder dropped = new LongAdder();
+
+	/** Dropped messages already reported in the log. */
+	private long droppedReported = 0;
+
+	private FileChannel channel;
+
+	private Thread thread;
+
+	private volatile boolean running = false;
+
+	/** True while the writer is about to sleep, so callers know to wake it. */
+	private volatile boolean waiting = false;
+
+	/** Only used on the writer thread. */
+	private final SimpleDateFormat timestampFormat = new SimpleDateFormat("MMM dd, YYYY h:mm:ss a");
+	private final Date timestampDate = new Date();
+	private long timestampSecond = -1;
+	private String timestamp;
+
+	private final StringBuilder batch = new StringBuilder(BATCH_CHARS);
+
+	public AsyncLogWriter(LogSegments segments) {
+		this(segments, DEFAULT_CAPACITY, overflowPolicyFromProperty());
+	}
+
+	public AsyncLogWriter(LogSegments segments, int capacity, OverflowPolicy overflowPolicy) {
+		this.segments = segments;
+		this.queue = new RingBuffer<Record>(capacity);
+		this.overflowPolicy = overflowPolicy;
+	}
+
+
+
+	private static OverflowPolicy overflowPolicyFromProperty() {
+		String value = System.getProperty("whg.logOverflow");
+		if (value == null) return OverflowPolicy.DROP_NEWEST;
+		try {
+			return OverflowPolicy.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown log overflow policy " + value + ", dropping new messages instead");
+			return OverflowPolicy.DROP_NEWEST;
+		}
+	}
+
+
+
+	/** Open a new log segment and start the writer thread. */
+	public synchronized void start() throws IOException {
+		if (this.running) return;
+		this.channel = this.segments.open();
+		this.running = true;
+		this.thread = new Thread(this, "Log Writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+
+
+	/** Write everything still waiting, then close and compress the last segment. */
+	public void close() {
+		Thread t;
+		synchronized (this) {
+			if (!this.running) return;
+			this.running = false;
+			t = this.thread;
+		}
+		LockSupport.unpark(t);
+		try {
+			t.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+
+	/** Queue a message, stamped with the current time. */
+	public void log(Level level, String message) {
+		enqueue(new Record(System.currentTimeMillis(), level, message));
+	}
+
+
+
+	/** Queue text to be written without a timestamp or level. */
+	public void append(String text) {
+		enqueue(new Record(0, null, text));
+	}
+
+
+
+	/** @return the number of messages waiting to be written */
+	public int getQueueDepth() {
+		return this.queue.size();
+	}
+
+
+
+	/** @return the number of messages thrown away because the buffer was full */
+	public long getDroppedCount() {
+		return this.dropped.sum();
+	}
+
+
+
+	private void enqueue(Record record) {
+		if (!this.queue.offer(record)) {
+			switch (this.overflowPolicy) {
+			case DROP_NEWEST:
+				this.dropped.increment();
+				return;
+			case DROP_OLDEST:
+				while (!this.queue.offer(record)) {
+					if (this.queue.poll() != null) this.dropped.increment();
+				}
+				break;
+			case BLOCK:
+				while (!this.queue.offer(record)) {
+					if (!this.running) {
+						this.dropped.increment();
+						return;
+					}
+					LockSupport.unpark(this.thread);
+					LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(100));
+				}
+				break;
+			}
+		}
+		if (this.waiting) LockSupport.unpark(this.thread);
+	}
+
+
+
+	public void run() {
+		try {
+			while (true) {
+				Record record = this.queue.poll();
+				if (record == null) {
+					flush();
+					if (!this.running && this.queue.isEmpty()) break;
+
+					this.waiting = true;
+					if (this.queue.isEmpty() && this.running) LockSupport.parkNanos(this, IDLE_NANOS);
+					this.waiting = false;
+					continue;
+				}
+
+				format(record);
+				if (this.batch.length() >= BATCH_CHARS) flush();
+			}
+		} catch (IOException e) {
+			System.err.println("Log writer stopped: " + e);
+			this.running = false;
+		} finally {
+			try {
+				this.segments.close(this.channel);
+			} catch (IOException e) {
+				System.err.println("Could not close the log: " + e);
+			}
+		}
+	}
+
+
+
+	private void format(Record record) {
+		if (record.level == null) {
+			this.batch.append(record.message).append(SEPARATOR);
+			return;
+		}
+
+		this.batch.append(timestamp(record.time))
+				.append(" net.thedanpage.worldshardestgame easyLog\n")
+				.append(record.level).append(": ").append(record.message).append(SEPARATOR);
+	}
+
+
+
+	/** Format a time, reusing the last result while it is in the same second. */
+	private String timestamp(long time) {
+		long second = time / 1000;
+		if (second != this.timestampSecond) {
+			this.timestampDate.setTime(time);
+			this.timestamp = this.timestampFormat.format(this.timestampDate);
+			this.timestampSecond = second;
+		}
+		return this.timestamp;
+	}
+
+
+
+	private void flush() throws IOException {
+		long dropped = this.dropped.sum();
+		if (dropped != this.droppedReported) {
+			this.batch.append(timestamp(System.currentTimeMillis()))
+					.append(" net.thedanpage.worldshardestgame easyLog\n")
+					.append(Level.WARNING).append(": ").append(dropped - this.droppedReported)
+					.append(" log messages were dropped because the log buffer was full").append(SEPARATOR);
+			this.droppedReported = dropped;
+		}
+
+		if (this.batch.length() > 0) {
+			ByteBuffer bytes = ByteBuffer.wrap(this.batch.toString().getBytes(StandardCharsets.UTF_8));
+			while (bytes.hasRemaining()) this.channel.write(bytes);
+			this.batch.setLength(0);
+		}
+
+		if (this.segments.needsRotation(this.channel, System.currentTimeMillis()))
+			this.channel = this.segments.rotate(this.channel);
+	}
+
+}
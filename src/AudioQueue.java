@@ -0,0 +1,138 @@
+package whg;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Plays sound effects on a dedicated audio thread. Gameplay code only
+ * queues what it wants to hear and never waits on TinySound. Requests for
+ * the same effect within one game tick are merged, high priority requests
+ * are played first, and requests that arrive while the queue is full are
+ * dropped and counted.
+ */
+public class AudioQueue implements Runnable {
+
+	public enum Priority {
+		/** Feedback the player must hear, such as dying. */
+		HIGH,
+		NORMAL,
+	}
+
+	/** Number of pending requests each priority can hold. */
+	private static final int CAPACITY = 64;
+
+	private static final RingBuffer<SoundEffect> highPriority = new RingBuffer<SoundEffect>(CAPACITY);
+	private static final RingBuffer<SoundEffect> normalPriority = new RingBuffer<SoundEffect>(CAPACITY);
+
+	/** The game tick each effect was last queued on, used to merge repeats. */
+	private static final AtomicLongArray lastQueuedTick = new AtomicLongArray(SoundEffect.values().length);
+
+	private static final LongAdder dropped = new LongAdder();
+	private static final LongAdder merged = new LongAdder();
+
+	private static Thread thread;
+
+	private static volatile boolean running = false;
+
+	static {
+		for (int i = 0; i < lastQueuedTick.length(); i++) lastQueuedTick.set(i, -1);
+	}
+
+	private AudioQueue() {
+	}
+
+
+
+	/** Start the audio thread. Sound effects should be preloaded first. */
+	public static synchronized void start() {
+		if (running) return;
+		running = true;
+		thread = new Thread(new AudioQueue(), "Audio");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+
+	public static synchronized void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+
+
+	/** Queue a sound effect at normal priority. */
+	public static boolean play(SoundEffect effect) {
+		return play(effect, Priority.NORMAL);
+	}
+
+
+
+	/**
+	 * Queue a sound effect.
+	 *
+	 * @return false if the request was merged with an identical one from
+	 * this tick, or dropped because the queue was full
+	 */
+	public static boolean play(SoundEffect effect, Priority priority) {
+		long tick = Game.getTickCount();
+		if (tick >= 0) {
+			long last = lastQueuedTick.get(effect.ordinal());
+			if (last == tick || !lastQueuedTick.compareAndSet(effect.ordinal(), last, tick)) {
+				merged.increment();
+				return false;
+			}
+		}
+
+		RingBuffer<SoundEffect> queue = priority == Priority.HIGH ? highPriority : normalPriority;
+		if (!queue.offer(effect)) {
+			dropped.increment();
+			if (dropped.sum() % 100 == 1)
+				Game.easyLog(Game.logger, Level.WARNING, "Audio queue full, " + dropped.sum() + " sounds dropped so far");
+			return false;
+		}
+
+		LockSupport.unpark(thread);
+		return true;
+	}
+
+
+
+	/** @return the number of requests dropped because the queue was full */
+	public static long getDroppedCount() {
+		return dropped.sum();
+	}
+
+
+
+	/** @return the number of requests merged with an identical one from the same tick */
+	public static long getMergedCount() {
+		return merged.sum();
+	}
+
+
+
+	public void run() {
+		while (running) {
+			SoundEffect effect = highPriority.poll();
+			if (effect == null) effect = normalPriority.poll();
+			if (effect == null) {
+				LockSupport.park(this);
+				continue;
+			}
+
+			GameEvents.Sound event = new GameEvents.Sound();
+			event.begin();
+			try {
+				effect.play();
+				event.effect = effect.name();
+				event.commit();
+			} catch (RuntimeException e) {
+				Game.easyLog(Game.logger, Level.SEVERE, "Error playing " + effect + ":\n" + Game.getStringFromStackTrace(e));
+			}
+		}
+	}
+
+}
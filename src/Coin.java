@@ -11,6 +11,9 @@ public class Coin {
 				+ snapY + ", collected=" + collected + "]";
 	}
 
+	/** Radius of the coin, in pixels. */
+	public static final int RADIUS = 10;
+
 	private int x;
 	private int y;
 	private double snapX;
@@ -56,6 +59,16 @@ public class Coin {
 		return this.y;
 	}
 	
+	/** @return the X coordinate of the centre of the coin, in level coordinates */
+	public int getCenterX() {
+		return this.x + 20;
+	}
+	
+	/** @return the Y coordinate of the centre of the coin, in level coordinates */
+	public int getCenterY() {
+		return this.y + 20;
+	}
+	
 	public int getSnapX() {
 		return (int) this.snapX;
 	}
@@ -64,6 +77,11 @@ public class Coin {
 		return (int) this.snapY;
 	}
 	
+	/** @return true if the coin overlaps the given box, in level coordinates */
+	public boolean intersects(double bx, double by, double bw, double bh) {
+		return Collision.circleIntersectsBox(this.x + 20, this.y + 20, RADIUS, bx, by, bw, bh);
+	}
+	
 	public Ellipse2D getBounds() {
 		return new Ellipse2D.Double(this.x + 10, this.y + 10, 20, 20);
 	}
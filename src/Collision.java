@@ -0,0 +1,38 @@
+package whg;
+
+/**
+ * Overlap tests on plain coordinates, so collision checks in the game loop
+ * don't need to build Shape objects.
+ */
+public final class Collision {
+
+	private Collision() {
+	}
+
+
+
+	/**
+	 * @return true if two axis-aligned boxes overlap. Boxes that only share
+	 * an edge do not count, matching {@link java.awt.geom.Rectangle2D#intersects}.
+	 */
+	public static boolean boxesIntersect(double ax, double ay, double aw, double ah,
+			double bx, double by, double bw, double bh) {
+		return ax < bx + bw && bx < ax + aw && ay < by + bh && by < ay + ah;
+	}
+
+
+
+	/**
+	 * @return true if a circle overlaps an axis-aligned box. A circle that
+	 * only touches the box does not count.
+	 */
+	public static boolean circleIntersectsBox(double cx, double cy, double r,
+			double bx, double by, double bw, double bh) {
+		double nearestX = cx < bx ? bx : (cx > bx + bw ? bx + bw : cx);
+		double nearestY = cy < by ? by : (cy > by + bh ? by + bh : cy);
+		double dx = cx - nearestX;
+		double dy = cy - nearestY;
+		return dx * dx + dy * dy < r * r;
+	}
+
+}
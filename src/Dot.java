@@ -17,6 +17,9 @@ public class Dot {
 
 
 
+	/** Radius of the dot, in pixels. */
+	public static final int RADIUS = 10;
+	
 	/** The first point that the dot will move between. */
 	private Point pos1;
 	
@@ -29,6 +32,12 @@ public class Dot {
 	/** The current Y position of the dot. */
 	private double y;
 	
+	/** The X position of the dot at the previous tick, used for interpolated drawing. */
+	private double prevX;
+	
+	/** The Y position of the dot at the previous tick, used for interpolated drawing. */
+	private double prevY;
+	
 	/**
 	 * The X coordinate of the dot, snapped to the grid of 40x40 tiles.
 	 * snapX = x/40
@@ -50,6 +59,13 @@ public class Dot {
 	/** True if the dot moves vertically, false if it moves horizontally. */
 	private boolean vertMovement;
 	
+	/** Where the dot starts, in tiles, and which way it starts moving. */
+	private int startSnapX, startSnapY;
+	private boolean startMoveToPos1;
+	
+	/** The speed the dot starts with. */
+	private double startSpeed;
+	
 	public Dot() {
 		this.x = 0;
 		this.y = 0;
@@ -60,6 +76,8 @@ public class Dot {
 		this.speed = 1;
 		this.moveToPos1 = true;
 		this.vertMovement = false;
+		this.startSpeed = this.speed;
+		this.startMoveToPos1 = this.moveToPos1;
 	}
 	
 	
@@ -67,6 +85,8 @@ public class Dot {
 	public Dot(int x, int y, Point pos1, Point pos2, double speed, boolean moveToPos1, boolean vertMovement) {
 		this.x = x*40;
 		this.y = y*40;
+		this.prevX = this.x;
+		this.prevY = this.y;
 		this.snapX = x;
 		this.snapY = y;
 		this.pos1 = pos1;
@@ -74,20 +94,49 @@ public class Dot {
 		this.speed = 0.7;
 		this.moveToPos1 = moveToPos1;
 		this.vertMovement = vertMovement;
+		this.startSnapX = x;
+		this.startSnapY = y;
+		this.startSpeed = this.speed;
+		this.startMoveToPos1 = moveToPos1;
+	}
+	
+	
+	
+	/** Put the dot back where it started, so its level can be played again. */
+	public void reset() {
+		this.x = this.startSnapX * 40;
+		this.y = this.startSnapY * 40;
+		this.prevX = this.x;
+		this.prevY = this.y;
+		this.snapX = this.startSnapX;
+		this.snapY = this.startSnapY;
+		this.speed = this.startSpeed;
+		this.moveToPos1 = this.startMoveToPos1;
 	}
 	
 	
 	
 	public void draw(Graphics g) {
+		draw(g, 1);
+	}
+	
+	
+	
+	/** Draw the dot between its previous and current position. */
+	public void draw(Graphics g, double alpha) {
+		double drawX = GameLoop.interpolate(this.prevX, this.x, alpha);
+		double drawY = GameLoop.interpolate(this.prevY, this.y, alpha);
 		g.setColor(Color.BLACK);
-		g.fillOval((int) (this.x - 10) + 20 , (int) (this.y - 10) + 20 + 22, 20, 20);
+		g.fillOval((int) (drawX - 10) + 20 , (int) (drawY - 10) + 20 + 22, 20, 20);
 		g.setColor(Color.RED);
-		g.fillOval((int) (this.x - 8) + 20 , (int) (this.y - 8) + 20 + 22, 16, 16);
+		g.fillOval((int) (drawX - 8) + 20 , (int) (drawY - 8) + 20 + 22, 16, 16);
 	}
 	
 	
 	
 	public void update() {
+		this.prevX = this.x;
+		this.prevY = this.y;
 		this.snapX = (int) (this.x/40);
 		this.snapY = (int) (this.y/40);
 		
@@ -132,6 +181,20 @@ public class Dot {
 	
 	
 	
+	/** @return the X coordinate of the centre of the dot, in level coordinates */
+	public double getCenterX() {
+		return this.x + 20;
+	}
+	
+	
+	
+	/** @return the Y coordinate of the centre of the dot, in level coordinates */
+	public double getCenterY() {
+		return this.y + 20;
+	}
+	
+	
+	
 	public int getSnapX() {
 		return this.snapX;
 	}
@@ -153,6 +216,13 @@ public class Dot {
 	
 	
 	
+	/** @return true if the dot overlaps the given box, in level coordinates */
+	public boolean intersects(double bx, double by, double bw, double bh) {
+		return Collision.circleIntersectsBox(this.x + 20, this.y + 20, RADIUS, bx, by, bw, bh);
+	}
+	
+	
+	
 	public Ellipse2D getBounds() {
 		return new Ellipse2D.Double((this.x - 10) + 20 , (this.y - 10) + 20, 20, 20);
 	}
@@ -10,19 +10,14 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Toolkit;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.awt.font.FontRenderContext;
 import java.awt.font.TextLayout;
 import java.awt.geom.AffineTransform;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.lang.StringBuilder;
@@ -31,16 +26,14 @@ import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
-import javax.swing.Timer;
 
 import java.io.*;
 import java.net.*;
 
 import kuusisto.tinysound.Music;
-import kuusisto.tinysound.Sound;
 import kuusisto.tinysound.TinySound;
 
-public class Game extends JPanel implements ActionListener {
+public class Game extends JPanel {
 
 	public static final String SERVER_ADDRESS = "13.60.53.107";
 	public static final int SERVER_PORT = 12000;
@@ -48,19 +41,25 @@ public class Game extends JPanel implements ActionListener {
 	/** An instance of the game. */
 	private static Game game;
 
-	/** The timer used for the game's clock. */
-	private Timer t = new Timer(5, this);
+	/** Drives the simulation at a fixed rate, separately from painting. */
+	private final GameLoop gameLoop = new GameLoop(this);
+
+	/** Held while the game state is being ticked or drawn. */
+	final Object stateLock = new Object();
+
+	/** Draws the level outside of Swing's repaint cycle, if enabled. */
+	private ActiveRenderer activeRenderer = null;
 
 	/** Used for logging information during the game. */
 	public final static Logger logger = Logger.getLogger(Game.class.getName());
 
-	static String logFilePath = System.getProperty("user.home")
-			+ "/worldshardestgame/logs/" +  new SimpleDateFormat("YY-MM-dd").format(new Date()) + ".log";
+	/** Where log segments are written, see {@link LogSegments}. */
+	static String logDirectory = System.getProperty("user.home") + "/worldshardestgame/logs";
 
 	private static final long serialVersionUID = 1L;
 
-	/** The frame that the panel goes in. */
-	static JFrame frame = new JFrame();
+	/** The frame that the panel goes in. Created by main, so the game can also run without a display. */
+	static JFrame frame;
 
 	/** The enum instance used for switching the state of the game. */
 	static final int INTRO = 0, LOGIN = 1, MAIN_MENU = 2, LEVEL_TITLE = 3, LEVEL = 4;
@@ -90,9 +89,12 @@ public class Game extends JPanel implements ActionListener {
 	// Player 2 on port 5001
 	// Player player2 = new Player(400, 300, Color.BLUE, 5001);
 
-	/** The data of the current level. This should be given data in initLevel(). */
+	/** The data of the current level. Replaced by {@link #loadLevel(Player, int)}. */
 	static GameLevel level = new GameLevel();
 
+	/** Builds upcoming levels in the background. */
+	private static final LevelPrefetcher levelPrefetcher = new LevelPrefetcher();
+
 	/** Controls whether the game has sound or not. */
 	static boolean muted = false;
 
@@ -110,6 +112,8 @@ public class Game extends JPanel implements ActionListener {
 	static Thread bgMusic = new Thread() {
 		public void run() {
 			TinySound.init();
+			if (StreamingMusic.isRequested() && new StreamingMusic("resources/music.ogg").play()) return;
+
 			Music bgmusic = TinySound.loadMusic(ClassLoader.getSystemResource(
 					"resources/music.ogg"));
 			bgmusic.play(true);
@@ -121,7 +125,7 @@ public class Game extends JPanel implements ActionListener {
 			try {
 				Thread.sleep(1500);
 			} catch (InterruptedException e) {
-				TextFileWriter.appendToFile(logFilePath, e.getMessage());
+				easyLog(logger, Level.WARNING, e.getMessage());
 			}
 			gameState = LOGIN;
 			easyLog(logger, Level.INFO, "Game state set to LOGIN");
@@ -130,6 +134,9 @@ public class Game extends JPanel implements ActionListener {
 
 	static boolean doLogging = false;
 
+	/** Writes log messages to the log directory in the background. Null until logging has been set up. */
+	private static volatile AsyncLogWriter logWriter = null;
+
 	private static int totalLevels = 0;
 
 
@@ -141,12 +148,6 @@ public class Game extends JPanel implements ActionListener {
 	/** The opacity of the intro text. */
 	private int introTextOpacity = 0;
 
-	/** A whoosh sound. */
-	Sound drone = TinySound.loadSound(ClassLoader.getSystemResource("resources/drone.ogg"));
-
-	/** A bell sound. */
-	Sound bell = TinySound.loadSound(ClassLoader.getSystemResource("resources/bell.wav"));
-
 	/** Network manager for multiplayer functionality */
 	private NetworkManager networkManager = null;
 	
@@ -192,20 +193,71 @@ public class Game extends JPanel implements ActionListener {
 	}
 
 	public void paintComponent(final Graphics g) {
+		// The active renderer draws over this panel on its own
+		if (activeRenderer != null && activeRenderer.handles(gameState)) {
+			activeRenderer.requestFrame();
+			return;
+		}
+
 		super.paintComponent(g);
 
-		update(g);
-		render(g);
+		GameEvents.Render event = new GameEvents.Render();
+		event.begin();
+		long start = System.nanoTime();
+		synchronized (stateLock) {
+			render(g, gameLoop.getInterpolation());
+		}
+		PerfHud.recordFrame(start, System.nanoTime());
+		event.gameState = gameState;
+		event.commit();
+
+		Toolkit.getDefaultToolkit().sync();
+	}
+
+
+
+	/** Draw a frame with the active renderer if it handles this state, otherwise through Swing. */
+	void requestFrame() {
+		if (activeRenderer != null && activeRenderer.handles(gameState)) activeRenderer.requestFrame();
+		else repaint();
+	}
+
+
+
+	/** Draw the current state into an off-screen buffer. Callers must hold the state lock. */
+	void renderFrame(Graphics g) {
+		GameEvents.Render event = new GameEvents.Render();
+		event.begin();
+		long start = System.nanoTime();
+		render(g, gameLoop.getInterpolation());
+		PerfHud.recordFrame(start, System.nanoTime());
+		event.gameState = gameState;
+		event.active = true;
+		event.commit();
+	}
+
+
+
+	/** Advance the game by one fixed simulation tick. */
+	void tick() {
+		long mark = AllocationMeter.begin();
+		update();
+
+		if (gameState == LEVEL && levelNum != 0) {
+			level.updateDots();
+			AllocationMeter.end(AllocationMeter.Phase.UPDATE, mark);
+
+			mark = AllocationMeter.begin();
+			player.update(level);
+			AllocationMeter.end(AllocationMeter.Phase.PLAYER_UPDATE, mark);
+		} else {
+			AllocationMeter.end(AllocationMeter.Phase.UPDATE, mark);
+		}
 
 		// If connected to server, update remote player positions for smooth rendering
 		if (connectedToServer && networkManager != null) {
 			networkManager.updateRemotePlayers();
 		}
-
-		// Start the timer
-		t.start();
-
-		Toolkit.getDefaultToolkit().sync();
 	}
 
 	public static Player[] getPlayers() {
@@ -214,16 +266,13 @@ public class Game extends JPanel implements ActionListener {
 
 
 
-	/** Update the game.
-	 *
-	 * @param g
-	 * */
-	public void update(Graphics g) {
+	/** Update the game state for the current screen. */
+	private void update() {
 
 		if (gameState == INTRO) {
 
 			if (introTextOpacity == 0 && !fadeOutIntro) {
-				drone.play();
+				AudioQueue.play(SoundEffect.DRONE);
 			}
 
 			if (introTextOpacity < 255 && !fadeOutIntro) {
@@ -237,7 +286,7 @@ public class Game extends JPanel implements ActionListener {
 						try {
 							Thread.sleep(3500);
 						} catch (InterruptedException e) {
-							TextFileWriter.appendToFile(logFilePath, e.getMessage());
+							easyLog(logger, Level.WARNING, e.getMessage());
 						}
 						fadeOutIntro = true;
 						bgMusic.start();
@@ -272,20 +321,20 @@ public class Game extends JPanel implements ActionListener {
 					 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 					 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
 
-					System.out.println("Connected to server.");
+					Trace.log(Trace.Category.HIGHSCORE, Trace.INFO, "Connected to server.");
 
 					out.println("GET_HIGHSCORE " + username);
 					highscore = in.readLine();
-					System.out.println("HighScore: " + highscore);
+					Trace.log(Trace.Category.HIGHSCORE, Trace.INFO, "HighScore: " + highscore);
 
 					// Explicitly close the socket and streams
 					out.close();
 					in.close();
 					socket.close();
-					System.out.println("Connection closed.");
+					Trace.log(Trace.Category.HIGHSCORE, Trace.INFO, "Connection closed.");
 
 				} catch (IOException e) {
-					System.err.println("Error: " + e.getMessage());
+					Trace.log(Trace.Category.HIGHSCORE, Trace.ERROR, "Error: " + e.getMessage());
 				}
 				gameState = MAIN_MENU;
 			}
@@ -308,12 +357,12 @@ public class Game extends JPanel implements ActionListener {
 					player.reset();
 
 					levelNum = 1;
-					level.init(player, levelNum);
+					loadLevel(player, levelNum);
 
 					//Wait 1.75 seconds then start the level.
 					new Thread() {
 						public void run() {
-							try { Thread.sleep(1750); } catch (InterruptedException e) { TextFileWriter.appendToFile(logFilePath, e.getMessage()); }
+							try { Thread.sleep(1750); } catch (InterruptedException e) { easyLog(logger, Level.WARNING, e.getMessage()); }
 							gameState = LEVEL;
 							easyLog(logger, Level.INFO, "Game state set to LEVEL");
 						}
@@ -325,7 +374,7 @@ public class Game extends JPanel implements ActionListener {
 				if (Input.mousePressed && Input.mouseCoords.x > 304 && Input.mouseCoords.y < 323
 						&& Input.mouseCoords.x < 515 && Input.mouseCoords.y > 192) {
 					showIntro = true;
-					bell.play();
+					AudioQueue.play(SoundEffect.BELL);
 				}
 			}
 
@@ -452,8 +501,10 @@ public class Game extends JPanel implements ActionListener {
 	/** Draw the game's graphics.
 	 *
 	 * @param g
+	 * @param interpolation
+	 * 		how far between the last two ticks moving objects should be drawn
 	 */
-	private void render(Graphics g) {
+	private void render(Graphics g, double interpolation) {
 		Graphics2D g2 = (Graphics2D) g;
 
 		if (gameState == INTRO) {
@@ -620,20 +671,21 @@ public class Game extends JPanel implements ActionListener {
 		} else if (gameState == LEVEL) {
 
 			if (levelNum != 0) {
+				long mark = AllocationMeter.begin();
 				level.drawTiles(g);
+				AllocationMeter.end(AllocationMeter.Phase.TILES, mark);
 
+				mark = AllocationMeter.begin();
 				level.drawCoins(g);
 				// level.drawCoinsPlayer2(g); // Draw coins for player 2
 
-				level.drawDots(g);
-				level.updateDots();
+				level.drawDots(g, interpolation);
+				AllocationMeter.end(AllocationMeter.Phase.COINS_AND_DOTS, mark);
 
-				player.draw(g);
+				player.draw(g, interpolation);
 				// player2.draw(g); // Draw player 2
 
-				player.update(level);
-				// player2.update(level, player);
-
+				mark = AllocationMeter.begin();
 				g.setColor(Color.WHITE);
 				g.setFont(new Font("Tahoma", Font.BOLD, 18));
 
@@ -663,11 +715,14 @@ public class Game extends JPanel implements ActionListener {
 				} else {
 					g.drawImage(VOLUME_WHITE, 760, -12, null);
 				}
+				AllocationMeter.end(AllocationMeter.Phase.HUD_TEXT, mark);
 			}
 
 			// Draw remote players in the level if connected
 			if (connectedToServer && networkManager != null) {
+				long mark = AllocationMeter.begin();
 				drawRemotePlayers(g);
+				AllocationMeter.end(AllocationMeter.Phase.REMOTE_PLAYERS, mark);
 			}
 
 			if (waitingForOtherPlayers) {
@@ -707,6 +762,10 @@ public class Game extends JPanel implements ActionListener {
 				g.drawString(powerupText, textX, textY);
 			}
 
+			if (PerfHud.isVisible()) {
+				PerfHud.draw(g, connectedToServer ? networkManager : null);
+			}
+
 		} else if (gameState == LEVEL_TITLE) {
 			//Background
 			g2.setPaint(new GradientPaint(0, 0, new Color(213, 213, 255), 0, 600, Color.WHITE));
@@ -808,15 +867,11 @@ public class Game extends JPanel implements ActionListener {
 				game.networkManager.disconnect();
 				easyLog(logger, Level.INFO, "Network resources cleaned up on shutdown");
 			}
+			StallWatchdog.logReport();
+			closeLog();
 		}));
 	}
 
-	public void actionPerformed(ActionEvent arg0) {
-		repaint();
-	}
-
-
-
 
 
 	/** Draw a string centered on its x axis.
@@ -970,36 +1025,40 @@ public class Game extends JPanel implements ActionListener {
 	 */
 	static void easyLog(Logger logger, Level level, String s) {
 		if (doLogging) {
-			logger.setLevel(level);
-
-			if (level == Level.CONFIG) logger.config(s);
-			else if (level == Level.FINE) logger.fine(s);
-			else if (level == Level.FINER) logger.finer(s);
-			else if (level == Level.FINEST) logger.finest(s);
-			else if (level == Level.INFO) logger.info(s);
-			else if (level == Level.SEVERE) logger.severe(s);
-			else if (level == Level.WARNING) logger.warning(s);
-
-			else {
-				logger.setLevel(Level.WARNING);
-				logger.warning("Logging error");
-			}
+			logger.log(level, s);
 
-			TextFileWriter.appendToFile(logFilePath, new SimpleDateFormat(
-					"MMM dd, YYYY h:mm:ss a").format(new Date())
-					+ " net.thedanpage.worldshardestgame easyLog\n" + level + ": " + s);
+			AsyncLogWriter writer = logWriter;
+			if (writer != null) writer.log(level, s);
 		}
 	}
 
 
 
+	/** @return the log writer, or null if nothing is being logged to a file */
+	static AsyncLogWriter getLogWriter() {
+		return logWriter;
+	}
+
+
+
+	/** Write out any log messages still waiting and close the log file. */
+	static void closeLog() {
+		AsyncLogWriter writer = logWriter;
+		logWriter = null;
+		if (writer != null) writer.close();
+	}
+
+
+
 
 
 	public static void main(String[] args) {
 
+		frame = new JFrame();
+
 		int option = JOptionPane.showConfirmDialog(
 				new Dialog(frame, true),
-				"Would you like to enable logging to " + System.getProperty("user.home") + "/worldshardestgame/logs?",
+				"Would you like to enable logging to " + Game.logDirectory + "?",
 				"Setup",
 				JOptionPane.YES_NO_OPTION);
 		if (option == JOptionPane.YES_OPTION) Game.doLogging = true;
@@ -1007,23 +1066,13 @@ public class Game extends JPanel implements ActionListener {
 
 		if (Game.doLogging) {
 
-			//Create directory for logs if it does not exist
-			if (!new File(System.getProperty("user.home") + "/worldshardestgame/logs").isDirectory()) {
-				new File(System.getProperty("user.home") + "/worldshardestgame/logs").mkdirs();
-			}
-
-			if (new File(Game.logFilePath + ".zip").exists()) {
-				LogZipper.unzip(
-						System.getProperty("user.home") + "/worldshardestgame/logs", Game.logFilePath + ".zip");
-				new File(Game.logFilePath + ".zip").delete();
-			}
-
+			Game.logger.setLevel(Level.ALL);
 			try {
-				if (new File(Game.logFilePath).exists() && new BufferedReader(new FileReader(Game.logFilePath)).readLine() != null) {
-					TextFileWriter.appendToFile(Game.logFilePath, "\n");
-				}
+				AsyncLogWriter writer = new AsyncLogWriter(new LogSegments(new File(Game.logDirectory).toPath()));
+				writer.start();
+				logWriter = writer;
 			} catch (IOException e) {
-				Game.easyLog(Game.logger, Level.WARNING, Game.getStringFromStackTrace(e));
+				System.err.println("Could not open the log in " + Game.logDirectory + ": " + e);
 			}
 		}
 
@@ -1034,14 +1083,19 @@ public class Game extends JPanel implements ActionListener {
 				totalLevels++;
 			}
 		} catch (Exception e) {
-			System.out.println("Total levels: " + totalLevels);
+			Trace.log(Trace.Category.LEVEL, Trace.INFO, "Total levels: " + totalLevels);
 		}
 
 		Game.easyLog(Game.logger, Level.INFO, "Starting The World's Hardest Game");
+		GameEvents.startRecordingIfRequested();
+		GameMetrics.start();
 
 		TinySound.init();
 		Game.easyLog(Game.logger, Level.INFO, "TinySound initialized");
 
+		SoundEffect.preloadAll();
+		AudioQueue.start();
+
 		if (Game.muted) TinySound.setGlobalVolume(0);
 
 		Input.init();
@@ -1058,6 +1112,15 @@ public class Game extends JPanel implements ActionListener {
 
 		frame.setIconImage(new ImageIcon(ClassLoader.getSystemResource("resources/favicon.png")).getImage());
 		frame.setVisible(true);
+
+		if (ActiveRenderer.isRequested()) {
+			game.activeRenderer = new ActiveRenderer(game, Boolean.getBoolean("whg.vsync"));
+			game.activeRenderer.start();
+		}
+
+		StallWatchdog.start();
+		game.gameLoop.start();
+		levelPrefetcher.prefetch(1);
 		
 		// Register shutdown hook for clean network disconnection
 		setupShutdownHook();
@@ -1071,4 +1134,36 @@ public class Game extends JPanel implements ActionListener {
 		return game.networkManager;
 	}
 
+	/** Run a task on the game thread, between simulation ticks. */
+	public static void runOnGameThread(Runnable task) {
+		game.gameLoop.invokeLater(task);
+	}
+
+	/**
+	 * Make a level the current one and respawn the player in it, then start
+	 * building the level after it in the background.
+	 */
+	static void loadLevel(Player player, int num) {
+		level = levelPrefetcher.take(num);
+		player.respawn(level);
+		if (num < totalLevels) levelPrefetcher.prefetch(num + 1);
+	}
+
+	/**
+	 * Create the game without a window, already playing a level, for checks
+	 * that run ticks and draw frames themselves, such as {@link AllocationCheck}.
+	 */
+	static Game createHeadless(int num) {
+		game = new Game();
+		levelNum = num;
+		gameState = LEVEL;
+		loadLevel(game.player, num);
+		return game;
+	}
+
+	/** @return the number of simulation ticks run so far, or -1 if the game hasn't been created */
+	public static long getTickCount() {
+		return game == null ? -1 : game.gameLoop.getTickCount();
+	}
+
 }
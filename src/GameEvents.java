@@ -0,0 +1,153 @@
+package whg;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.logging.Level;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for the game. Events cost next to nothing
+ * unless a recording is running. Start one from the command line with
+ * -Dwhg.jfr=game.jfr, optionally with -Dwhg.jfrSettings=profile for more
+ * JDK detail; the recording is written when the game exits. A recording
+ * started with -XX:StartFlightRecording picks these events up as well.
+ */
+public final class GameEvents {
+
+	private GameEvents() {
+	}
+
+
+
+	@Name("whg.Tick")
+	@Label("Simulation Tick")
+	@Category({"World's Hardest Game", "Game Loop"})
+	@StackTrace(false)
+	public static class Tick extends Event {
+		@Label("Tick")
+		public long tick;
+
+		@Label("Game State")
+		public int gameState;
+	}
+
+
+
+	@Name("whg.Render")
+	@Label("Render")
+	@Description("Drawing one frame, by Swing or the active renderer")
+	@Category({"World's Hardest Game", "Game Loop"})
+	@StackTrace(false)
+	public static class Render extends Event {
+		@Label("Game State")
+		public int gameState;
+
+		@Label("Active Renderer")
+		public boolean active;
+	}
+
+
+
+	@Name("whg.LevelLoad")
+	@Label("Level Load")
+	@Description("Building a level's tiles, dots, coins and static layer")
+	@Category({"World's Hardest Game", "Levels"})
+	public static class LevelLoad extends Event {
+		@Label("Level")
+		public int level;
+
+		@Label("Dots")
+		public int dots;
+
+		@Label("Coins")
+		public int coins;
+	}
+
+
+
+	@Name("whg.NetworkFetch")
+	@Label("Player List Fetch")
+	@Description("A round trip to the server for the other players' positions")
+	@Category({"World's Hardest Game", "Network"})
+	@StackTrace(false)
+	public static class NetworkFetch extends Event {
+		@Label("Response Size")
+		@DataAmount
+		public int bytes;
+
+		@Label("Answered")
+		public boolean answered;
+	}
+
+
+
+	@Name("whg.NetworkDecode")
+	@Label("Player List Decode")
+	@Category({"World's Hardest Game", "Network"})
+	@StackTrace(false)
+	public static class NetworkDecode extends Event {
+		@Label("Response Size")
+		@DataAmount
+		public int bytes;
+
+		@Label("Players")
+		public int players;
+	}
+
+
+
+	@Name("whg.LevelBarrier")
+	@Label("Level Completion Wait")
+	@Description("Waiting for the server to say every player has finished the level")
+	@Category({"World's Hardest Game", "Network"})
+	public static class LevelBarrier extends Event {
+		@Label("Level")
+		public int level;
+
+		@Label("All Completed")
+		public boolean allCompleted;
+	}
+
+
+
+	@Name("whg.Sound")
+	@Label("Sound Effect")
+	@Category({"World's Hardest Game", "Audio"})
+	@StackTrace(false)
+	public static class Sound extends Event {
+		@Label("Effect")
+		public String effect;
+	}
+
+
+
+	/** Start a recording if one was asked for on the command line. It is written out when the game exits. */
+	public static void startRecordingIfRequested() {
+		String file = System.getProperty("whg.jfr");
+		if (file == null || file.isEmpty()) return;
+
+		String settings = System.getProperty("whg.jfrSettings", "default");
+		try {
+			final Recording recording = new Recording(Configuration.getConfiguration(settings));
+			recording.setName("World's Hardest Game");
+			recording.setToDisk(true);
+			recording.setDestination(Paths.get(file));
+			recording.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(recording::stop, "Flight Recording"));
+			Game.easyLog(Game.logger, Level.INFO, "Flight recording to " + file + " with " + settings + " settings");
+		} catch (IOException | ParseException | RuntimeException e) {
+			Game.easyLog(Game.logger, Level.WARNING, "Could not start flight recording: " + e);
+		}
+	}
+
+}
@@ -3,11 +3,15 @@ package whg;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
 import java.awt.Point;
-import java.awt.Rectangle;
-import java.awt.geom.Area;
+import java.awt.Transparency;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.logging.Level;
 
@@ -35,6 +39,18 @@ public class GameLevel {
 	/** A list of all of the level's tiles. */
 	ArrayList<Tile> tileMap;
 
+	/** Size of the level, in tiles. */
+	public static final int GRID_WIDTH = 20, GRID_HEIGHT = 15;
+
+	/** Returned by {@link #getTileType(int, int)} where the level has no tile. */
+	public static final int NO_TILE = -1;
+
+	/** The level's tiles indexed by snapY * GRID_WIDTH + snapX, for constant-time lookups. */
+	private Tile[] tileGrid;
+
+	/** The type of each tile in tileGrid, or NO_TILE. */
+	private int[] tileTypes;
+
 	/** A list of all of the level's dots. */
 	public ArrayList<Dot> dots;
 
@@ -43,12 +59,26 @@ public class GameLevel {
 
 	public ArrayList<Coin> coinsPlayer2;
 
-	/** The area of the level, not including background tiles. */
-	Area levelArea;
+	/** Dots and coins filed by position, so players only test the ones nearby. */
+	private final SpatialGrid dotGrid = new SpatialGrid(GRID_WIDTH, GRID_HEIGHT, 40);
+	private final SpatialGrid coinGrid = new SpatialGrid(GRID_WIDTH, GRID_HEIGHT, 40);
+
+	/** The list sizes the grids were last built for. */
+	private int indexedDots = 0, indexedCoins = 0;
+
+	/** The outline of the level, not including background tiles, grown by the 3 pixel border. */
+	Path2D levelArea;
+
+	/** Width and height of the pre-rendered static layer. */
+	private static final int LAYER_WIDTH = 800, LAYER_HEIGHT = 644;
+
+	/** The background, border and tiles, drawn once per level. Null until rendered. */
+	private BufferedImage staticLayer;
 
 	public GameLevel() {
-		this.levelArea = new Area();
+		this.levelArea = new Path2D.Float();
 		this.tileMap = new ArrayList<Tile>();
+		this.clearTileGrid();
 		this.dots = new ArrayList<Dot>();
 		this.coins = new ArrayList<Coin>();
 		// this.coinsPlayer2 = new ArrayList<Coin>(); // Initialize coins for player 2
@@ -59,8 +89,9 @@ public class GameLevel {
 	}
 
 	public GameLevel(Point spawn, int id) {
-		this.levelArea = new Area();
+		this.levelArea = new Path2D.Float();
 		this.tileMap = new ArrayList<Tile>();
+		this.clearTileGrid();
 		this.dots = new ArrayList<Dot>();
 		this.spawnPoint = spawn;
 		this.id = id;
@@ -88,6 +119,37 @@ public class GameLevel {
 		return this.tileMap;
 	}
 
+	/**
+	 * @return the tile at the given grid position, or null if there is none
+	 */
+	public Tile getTile(int snapX, int snapY) {
+		if (snapX < 0 || snapX >= GRID_WIDTH || snapY < 0 || snapY >= GRID_HEIGHT) return null;
+		return this.tileGrid[snapY * GRID_WIDTH + snapX];
+	}
+
+	/**
+	 * @return the type of the tile at the given grid position, or NO_TILE if there is none
+	 */
+	public int getTileType(int snapX, int snapY) {
+		if (snapX < 0 || snapX >= GRID_WIDTH || snapY < 0 || snapY >= GRID_HEIGHT) return NO_TILE;
+		return this.tileTypes[snapY * GRID_WIDTH + snapX];
+	}
+
+	/** Add a tile to the tile list and the lookup grid. */
+	private void addTile(Tile t) {
+		this.tileMap.add(t);
+		if (t.getSnapX() >= 0 && t.getSnapX() < GRID_WIDTH && t.getSnapY() >= 0 && t.getSnapY() < GRID_HEIGHT) {
+			this.tileGrid[t.getSnapY() * GRID_WIDTH + t.getSnapX()] = t;
+			this.tileTypes[t.getSnapY() * GRID_WIDTH + t.getSnapX()] = t.getType();
+		}
+	}
+
+	private void clearTileGrid() {
+		this.tileGrid = new Tile[GRID_WIDTH * GRID_HEIGHT];
+		this.tileTypes = new int[GRID_WIDTH * GRID_HEIGHT];
+		Arrays.fill(this.tileTypes, NO_TILE);
+	}
+
 	/**
 	 * @return levelTitle
 	 */
@@ -99,23 +161,39 @@ public class GameLevel {
 
 	/** Draw the tiles based on a text file in the maps package.
 	 *
-	 *
+	 * The tiles never change during a level, so they are drawn once into
+	 * an image and copied to the screen each frame.
 	 * */
 	public void drawTiles(Graphics g) {
+		if (this.staticLayer == null) this.staticLayer = renderStaticLayer();
+		g.drawImage(this.staticLayer, 0, 0, null);
+	}
 
-		Graphics2D g2 = (Graphics2D) g;
 
-		try {
-			/*for (Tile t : this.tileMap) {
-				//Background
-				if (t.getType() == 0) {
-					g.setColor(new Color(180, 181, 254));
-					g.fillRect(t.getX(), t.getY(), 40, 40);
-				}
-			}*/
 
-			g.setColor(new Color(180, 181, 254));
-			g.fillRect(0, 22, 800, 622);
+	/** Throw away the pre-rendered tiles so they are drawn again next frame. */
+	public void invalidateStaticLayer() {
+		if (this.staticLayer != null) this.staticLayer.flush();
+		this.staticLayer = null;
+	}
+
+
+
+	/** Draw the background, level border and tiles into an image the screen can copy quickly. */
+	private BufferedImage renderStaticLayer() {
+		BufferedImage image;
+		if (GraphicsEnvironment.isHeadless()) {
+			image = new BufferedImage(LAYER_WIDTH, LAYER_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		} else {
+			image = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+					.getDefaultConfiguration().createCompatibleImage(LAYER_WIDTH, LAYER_HEIGHT, Transparency.BITMASK);
+		}
+
+		Graphics2D g2 = image.createGraphics();
+
+		try {
+			g2.setColor(new Color(180, 181, 254));
+			g2.fillRect(0, 22, 800, 622);
 
 			//Border around level
 			g2.setColor(Color.BLACK);
@@ -123,26 +201,104 @@ public class GameLevel {
 
 			for (Tile t : this.tileMap) {
 
-				t.draw(this, g);
+				t.draw(this, g2);
 
 			}
 		} catch (Exception e) {
-			System.out.println("File not found.");
-			TextFileWriter.appendToFile(Game.logFilePath, Game.getStringFromStackTrace(e));
+			Trace.log(Trace.Category.LEVEL, Trace.ERROR, "Could not draw the level");
+			Game.easyLog(Game.logger, Level.SEVERE, Game.getStringFromStackTrace(e));
+		} finally {
+			g2.dispose();
 		}
+
+		return image;
 	}
 
 
 
 	public void drawDots(Graphics g) {
-		for (Dot dot : this.dots) dot.draw(g);
+		drawDots(g, 1);
+	}
+
+
+
+	public void drawDots(Graphics g, double alpha) {
+		for (Dot dot : this.dots) dot.draw(g, alpha);
 	}
 
 
 
 	public void updateDots() {
-		if (this.dots != null)
-			for (Dot dot : this.dots) dot.update();
+		if (this.dots != null) {
+			if (this.dots.size() != this.indexedDots) indexDots();
+			for (int i = 0; i < this.dots.size(); i++) {
+				Dot dot = this.dots.get(i);
+				dot.update();
+				this.dotGrid.move(i, dot.getCenterX(), dot.getCenterY());
+			}
+		}
+	}
+
+
+
+	/**
+	 * Find the dots that might be inside a box. Read them with
+	 * {@link #nearbyDot(int)}.
+	 *
+	 * @return the number of dots found
+	 */
+	public int findDotsNear(double minX, double minY, double maxX, double maxY) {
+		if (this.dots == null) return 0;
+		if (this.dots.size() != this.indexedDots) indexDots();
+		return this.dotGrid.query(minX - Dot.RADIUS, minY - Dot.RADIUS, maxX + Dot.RADIUS, maxY + Dot.RADIUS);
+	}
+
+
+
+	/** @return the i-th dot found by the last call to findDotsNear */
+	public Dot nearbyDot(int i) {
+		return this.dots.get(this.dotGrid.result(i));
+	}
+
+
+
+	/**
+	 * Find the coins that might be inside a box. Read them with
+	 * {@link #nearbyCoin(int)}.
+	 *
+	 * @return the number of coins found
+	 */
+	public int findCoinsNear(double minX, double minY, double maxX, double maxY) {
+		if (this.coins == null) return 0;
+		if (this.coins.size() != this.indexedCoins) indexCoins();
+		return this.coinGrid.query(minX - Coin.RADIUS, minY - Coin.RADIUS, maxX + Coin.RADIUS, maxY + Coin.RADIUS);
+	}
+
+
+
+	/** @return the i-th coin found by the last call to findCoinsNear */
+	public Coin nearbyCoin(int i) {
+		return this.coins.get(this.coinGrid.result(i));
+	}
+
+
+
+	private void indexDots() {
+		int count = this.dots == null ? 0 : this.dots.size();
+		this.dotGrid.clear(count);
+		for (int i = 0; i < count; i++)
+			this.dotGrid.insert(i, this.dots.get(i).getCenterX(), this.dots.get(i).getCenterY());
+		this.indexedDots = count;
+	}
+
+
+
+	private void indexCoins() {
+		int count = this.coins == null ? 0 : this.coins.size();
+		this.coinGrid.clear(count);
+		for (int i = 0; i < count; i++)
+			this.coinGrid.insert(i, this.coins.get(i).getCenterX(), this.coins.get(i).getCenterY());
+		this.indexedCoins = count;
 	}
 
 
@@ -186,15 +342,26 @@ public class GameLevel {
 	 * net.thedanpage.worldshardestgame.resources.maps
 	 */
 	public void init(Player player1, int levelNum) {
+		this.load(levelNum);
+		player1.respawn(this);
+	}
 
-		if (ClassLoader.getSystemResource("resources/maps/level_" + levelNum + ".txt") != null)
-			Game.easyLog(Game.logger, Level.INFO, "The file for level " + levelNum + " has been found");
-		else Game.easyLog(Game.logger, Level.SEVERE, "The file for level " + levelNum + " could not be found");
 
-		Game.easyLog(Game.logger, Level.INFO, "Level " + Game.levelNum + " is being initialized");
+
+	/**
+	 * Build the level's tiles, dots and coins and render its static layer.
+	 * This doesn't touch the players, so it can be run ahead of time on
+	 * another thread.
+	 */
+	public void load(int levelNum) {
+		GameEvents.LevelLoad event = new GameEvents.LevelLoad();
+		event.begin();
+
+		Game.easyLog(Game.logger, Level.INFO, "Level " + levelNum + " is being initialized");
 
 		//Clears the tile data
 		this.tileMap = new ArrayList<Tile>();
+		this.clearTileGrid();
 
 		//Clears the dot data
 		this.dots = new ArrayList<Dot>();
@@ -204,141 +371,70 @@ public class GameLevel {
 		// this.coinsPlayer2 = new ArrayList<Coin>();
 
 		//Clears the level area data
-		this.levelArea = new Area();
+		this.levelArea = new Path2D.Float();
+		this.invalidateStaticLayer();
 
 		//Resets the level title
 		this.levelTitle = "\"Intimidating message\nhere\"";
 
 		try {
-			String resourcePath = "resources/maps/level_" + levelNum;
-			
-			// Load player 1 spawn point
-			this.spawnPoint = new Point(
-					Integer.parseInt(PropLoader
-							.loadProperty("spawn_point", resourcePath + ".properties")
-							.split(",")[0]) * 40 + 20,
-					Integer.parseInt(PropLoader
-							.loadProperty("spawn_point", resourcePath + ".properties")
-							.split(",")[1]) * 40 + 20);
-
-			this.id = Integer.parseInt(PropLoader.loadProperty("level_id",
-					resourcePath + ".properties"));
-
-			this.levelTitle = PropLoader.loadProperty("level_title",
-					resourcePath + ".properties").toString();
-
-			// Process coins
-			String coinData = PropLoader.loadProperty("coins",
-					resourcePath + ".properties");
-
-			if (coinData != null && !coinData.equals("null")) {
-				coinData = coinData.replaceAll("\\Z", "");
-
-				if (coinData.contains("-")) {
-					String[] coins = coinData.split("-");
-					for (String s : coins) {
-						int coinX = (int) (Double.parseDouble(s.split(",")[0]) * 40);
-						int coinY = (int) (Double.parseDouble(s.split(",")[1]) * 40);
-
-						this.coins.add(new Coin(coinX, coinY));
-					}
-				} else {
-					int coinX = (int) (Double.parseDouble(coinData.split(",")[0]) * 40);
-					int coinY = (int) (Double.parseDouble(coinData.split(",")[1]) * 40);
-
-					this.coins.add(new Coin(coinX, coinY));
-				}
-			}
-			Game.easyLog(Game.logger, Level.INFO, "All coins have been added");
+			LevelData data = LevelCache.get(levelNum);
 
-			// New robust approach using BufferedReader
-			ArrayList<String> mapLines = new ArrayList<>();
-			try (java.io.BufferedReader reader = new java.io.BufferedReader(
-					new java.io.InputStreamReader(
-							ClassLoader.getSystemResourceAsStream(resourcePath + ".txt"), 
-							java.nio.charset.StandardCharsets.UTF_8))) {
-				
-				String line;
-				while ((line = reader.readLine()) != null) {
-					mapLines.add(line.trim());
-				}
-			}
-			
-			// Process map data
-			StringBuilder mapData = new StringBuilder();
-			int mapHeight = Math.min(15, mapLines.size());
-			for (int i = 0; i < mapHeight; i++) {
-				mapData.append(mapLines.get(i).replaceAll("\\s+", ""));
-			}
-			
-			Game.easyLog(Game.logger, Level.INFO, "Map data length: " + mapData.length());
+			this.spawnPoint = new Point(data.spawnX, data.spawnY);
+			this.id = data.id;
+			this.levelTitle = data.title;
+
+			for (int i = 0; i < data.getCoinCount(); i++)
+				this.coins.add(new Coin(data.coinX[i], data.coinY[i]));
+			Game.easyLog(Game.logger, Level.INFO, "All coins have been added");
 
 			// Create tile map
-			for (int i = 0; i < mapData.length() && i < 300; i++) {
-				char tileChar = mapData.charAt(i);
-				int tileType = Character.getNumericValue(tileChar);
-				
-				if (tileType >= 0 && tileType <= 9) {
-					this.tileMap.add(new Tile((i % 20) * 40, (i / 20) * 40, tileType));
-				} else {
-					Game.easyLog(Game.logger, Level.WARNING, "Invalid tile character at position " + i + 
-							   ": '" + tileChar + "' (code: " + (int)tileChar + ")");
-					this.tileMap.add(new Tile((i % 20) * 40, (i / 20) * 40, 0));
-				}
-			}
-			
+			for (int i = 0; i < data.tiles.length; i++)
+				this.addTile(new Tile((i % GRID_WIDTH) * 40, (i / GRID_WIDTH) * 40, data.tiles[i]));
+
 			// Generate level area
-			this.levelArea = new Area();
-			for (Tile t : this.tileMap) {
-				if (t.getType() != 0) {
-					this.levelArea.add(new Area(
-							new Rectangle(t.getX() - 3, t.getY() - 3 + 22, 46, 46)));
-				}
-			}
-			
-			// Process dot data
-			int dotStartLine = 19;  // Typically dots start after line 19
-			while (dotStartLine < mapLines.size()) {
-				String line = mapLines.get(dotStartLine);
-				if (line.isEmpty()) {
-					dotStartLine++;
-					continue;
-				}
-				
-				try {
-					String[] dotData = line.replaceAll("\\s+", "").split("-");
-					if (dotData.length >= 7) {
-						this.dots.add(new Dot(
-								Integer.parseInt(dotData[0]),
-								Integer.parseInt(dotData[1]),
-								new Point(Integer.parseInt(dotData[2].split(",")[0]),
-										Integer.parseInt(dotData[2].split(",")[1])),
-								new Point(Integer.parseInt(dotData[3].split(",")[0]),
-										Integer.parseInt(dotData[3].split(",")[1])),
-								Double.parseDouble(dotData[4]),
-								Boolean.parseBoolean(dotData[5]),
-								Boolean.parseBoolean(dotData[6])
-						));
-					}
-				} catch (Exception e) {
-					if (e.getClass().getName() != "java.lang.ArrayIndexOutOfBoundsException")
-						Game.easyLog(Game.logger, Level.WARNING, "Error parsing dot data: " + line);
-				}
-				dotStartLine++;
+			int rows = (data.tiles.length + GRID_WIDTH - 1) / GRID_WIDTH;
+			boolean[] inLevel = new boolean[rows * GRID_WIDTH];
+			for (int i = 0; i < data.tiles.length; i++) inLevel[i] = data.tiles[i] != 0;
+			this.levelArea = LevelOutline.trace(inLevel, GRID_WIDTH, rows, 40, 3, 0, 22);
+
+			int[] p = data.dotPositions;
+			for (int i = 0; i < data.getDotCount(); i++) {
+				int o = i * LevelData.DOT_STRIDE;
+				this.dots.add(new Dot(p[o], p[o + 1],
+						new Point(p[o + 2], p[o + 3]),
+						new Point(p[o + 4], p[o + 5]),
+						data.dotSpeeds[i],
+						(data.dotFlags[i] & LevelData.MOVE_TO_POS1) != 0,
+						(data.dotFlags[i] & LevelData.VERTICAL) != 0));
 			}
-			
 			Game.easyLog(Game.logger, Level.INFO, "All dots have been added");
-			
-		} catch (Exception e) {
-			if (e.getClass().getName() != "java.lang.ArrayIndexOutOfBoundsException")
-				Game.easyLog(Game.logger, Level.SEVERE, "Dots unable to be loaded:\n" + Game.getStringFromStackTrace(e));
+
+		} catch (IOException e) {
+			Game.easyLog(Game.logger, Level.SEVERE, "Level " + levelNum + " could not be loaded:\n" + Game.getStringFromStackTrace(e));
 		}
 		
 		if (this.tileMap.size() == 300) Game.easyLog(Game.logger, Level.INFO, "All tiles have been added");
 		else Game.easyLog(Game.logger, Level.WARNING, "Not all tiles were added");
 
-		// Respawn player
-		player1.respawn(this);
+		this.indexDots();
+		this.indexCoins();
+
+		this.staticLayer = renderStaticLayer();
+
+		event.level = levelNum;
+		event.dots = this.dots.size();
+		event.coins = this.coins.size();
+		event.commit();
+	}
+
+
+
+	/** Put the dots and coins back to how they started, so the level can be played again. */
+	public void reset() {
+		for (Dot dot : this.dots) dot.reset();
+		for (Coin coin : this.coins) coin.collected = false;
+		this.indexDots();
 	}
 
 }
\ No newline at end of file
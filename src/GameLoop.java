@@ -0,0 +1,167 @@
+package whg;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Runs the simulation at a fixed rate on its own thread, independent of how
+ * often Swing gets around to painting. Each pass catches the simulation up to
+ * real time in whole ticks and then asks for a frame; the renderer uses
+ * {@link #getInterpolation()} to draw moving objects between the last two
+ * ticks.
+ */
+public class GameLoop implements Runnable {
+
+	/** Simulation rate. Movement speeds are tuned per tick, so this matches the old 5 ms timer. */
+	public static final int TICKS_PER_SECOND = 200;
+
+	/** Length of one simulation tick. */
+	public static final long TICK_NANOS = 1_000_000_000L / TICKS_PER_SECOND;
+
+	/**
+	 * Most real time simulated in a single pass. Anything longer (a debugger
+	 * pause, a suspended laptop) is dropped instead of replayed as a burst.
+	 */
+	private static final long MAX_CATCH_UP_NANOS = 250_000_000L;
+
+	/** Objects that move further than this in one tick are drawn without interpolation. */
+	private static final double MAX_INTERPOLATION_DISTANCE = 20;
+
+	private final Game game;
+
+	/** Work handed to the game thread from other threads, run before the next tick. */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private Thread thread;
+
+	private volatile boolean running = false;
+
+	/** Number of ticks simulated so far. */
+	private volatile long tickCount = 0;
+
+	/** The point in real time that the current simulation state corresponds to. */
+	private volatile long stateNanos = System.nanoTime();
+
+	public GameLoop(Game game) {
+		this.game = game;
+	}
+
+
+
+	public synchronized void start() {
+		if (running) return;
+		running = true;
+		thread = new Thread(this, "Game Loop");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) thread.interrupt();
+	}
+
+
+
+	public void run() {
+		long previous = System.nanoTime();
+		long accumulator = 0;
+
+		while (running) {
+			StallWatchdog.GAME_LOOP.begin();
+			long now = System.nanoTime();
+			long elapsed = now - previous;
+			previous = now;
+
+			if (elapsed > MAX_CATCH_UP_NANOS) {
+				Game.easyLog(Game.logger, Level.WARNING, "Game loop fell " + (elapsed / 1_000_000)
+						+ "ms behind, skipping ahead");
+				elapsed = MAX_CATCH_UP_NANOS;
+			}
+			accumulator += elapsed;
+
+			if (accumulator >= TICK_NANOS) {
+				synchronized (game.stateLock) {
+					while (accumulator >= TICK_NANOS) {
+						runPendingTasks();
+						GameEvents.Tick event = new GameEvents.Tick();
+						event.begin();
+						long tickStart = System.nanoTime();
+						try {
+							game.tick();
+						} catch (RuntimeException e) {
+							Game.easyLog(Game.logger, Level.SEVERE, Game.getStringFromStackTrace(e));
+						}
+						PerfHud.recordTick(System.nanoTime() - tickStart);
+						event.tick = tickCount;
+						event.gameState = Game.gameState;
+						event.commit();
+						tickCount++;
+						accumulator -= TICK_NANOS;
+					}
+					stateNanos = now - accumulator;
+				}
+			}
+
+			game.requestFrame();
+			StallWatchdog.GAME_LOOP.end();
+
+			long sleep = TICK_NANOS - accumulator - (System.nanoTime() - now);
+			if (sleep > 0) LockSupport.parkNanos(sleep);
+		}
+	}
+
+
+
+	private void runPendingTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Game.easyLog(Game.logger, Level.SEVERE, Game.getStringFromStackTrace(e));
+			}
+		}
+	}
+
+
+
+	/** Run a task on the game thread, between ticks. */
+	public void invokeLater(Runnable task) {
+		tasks.add(task);
+	}
+
+
+
+	/**
+	 * @return how far real time has moved past the last tick, as a fraction
+	 * of a tick between 0 and 1
+	 */
+	public double getInterpolation() {
+		double alpha = (double) (System.nanoTime() - stateNanos) / TICK_NANOS;
+		if (alpha < 0) return 0;
+		if (alpha > 1) return 1;
+		return alpha;
+	}
+
+
+
+	public long getTickCount() {
+		return tickCount;
+	}
+
+
+
+	/**
+	 * Blend a coordinate between its previous and current tick values.
+	 * Jumps such as respawns and screen wrapping are not smoothed.
+	 */
+	public static double interpolate(double previous, double current, double alpha) {
+		if (Math.abs(current - previous) > MAX_INTERPOLATION_DISTANCE) return current;
+		return previous + (current - previous) * alpha;
+	}
+
+}
@@ -0,0 +1,205 @@
+package whg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters and gauges for watching a long running game from outside, such
+ * as a kiosk left on all day. They are published as the MBean
+ * whg:type=GameMetrics, so jconsole or any JMX agent can read them, and,
+ * with -Dwhg.metricsPort=9404, as Prometheus text at
+ * http://127.0.0.1:9404/metrics.
+ *
+ * Counters are LongAdders, so threads counting at the same time never
+ * wait on each other.
+ */
+public class GameMetrics implements GameMetricsMBean {
+
+	public static final String OBJECT_NAME = "whg:type=GameMetrics";
+
+	static final LongAdder frames = new LongAdder();
+
+	/** Frames that came later than {@link PerfHud#SLOW_FRAME_NANOS} after the one before. */
+	static final LongAdder droppedFrames = new LongAdder();
+
+	static final LongAdder deaths = new LongAdder();
+
+	static final LongAdder levelsCompleted = new LongAdder();
+
+	static final LongAdder udpPacketsSent = new LongAdder();
+
+	static final LongAdder udpPacketsReceived = new LongAdder();
+
+	/** Player list requests the server did not answer in time. */
+	static final LongAdder udpTimeouts = new LongAdder();
+
+	static final LongAdder tiltSamples = new LongAdder();
+
+	private static volatile int remotePlayers = 0;
+
+	private static final GameMetrics instance = new GameMetrics();
+
+	private static HttpServer httpServer;
+
+	private GameMetrics() {
+	}
+
+
+
+	/** Register the MBean, and start the HTTP endpoint if a port was given. */
+	public static synchronized void start() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+		} catch (JMException | RuntimeException e) {
+			Game.easyLog(Game.logger, Level.WARNING, "Could not register metrics MBean: " + e);
+		}
+
+		Integer port = Integer.getInteger("whg.metricsPort");
+		if (port == null || httpServer != null) return;
+		try {
+			httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			httpServer.createContext("/metrics", GameMetrics::serve);
+			httpServer.setExecutor(Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "Metrics Server");
+				t.setDaemon(true);
+				return t;
+			}));
+			httpServer.start();
+			Game.easyLog(Game.logger, Level.INFO, "Serving metrics on http://127.0.0.1:" + port + "/metrics");
+		} catch (IOException e) {
+			httpServer = null;
+			Game.easyLog(Game.logger, Level.WARNING, "Could not serve metrics on port " + port + ": " + e);
+		}
+	}
+
+
+
+	static void setRemotePlayers(int count) {
+		remotePlayers = count;
+	}
+
+
+
+	public long getFrames() {
+		return frames.sum();
+	}
+
+	public long getDroppedFrames() {
+		return droppedFrames.sum();
+	}
+
+	public long getTicks() {
+		return Math.max(0, Game.getTickCount());
+	}
+
+	public long getDeaths() {
+		return deaths.sum();
+	}
+
+	public long getLevelsCompleted() {
+		return levelsCompleted.sum();
+	}
+
+	public long getUdpPacketsSent() {
+		return udpPacketsSent.sum();
+	}
+
+	public long getUdpPacketsReceived() {
+		return udpPacketsReceived.sum();
+	}
+
+	public long getUdpTimeouts() {
+		return udpTimeouts.sum();
+	}
+
+	public int getRemotePlayers() {
+		return remotePlayers;
+	}
+
+	public long getTiltSamples() {
+		return tiltSamples.sum();
+	}
+
+	public int getLogQueueDepth() {
+		AsyncLogWriter writer = Game.getLogWriter();
+		return writer == null ? 0 : writer.getQueueDepth();
+	}
+
+	public long getLogMessagesDropped() {
+		AsyncLogWriter writer = Game.getLogWriter();
+		return writer == null ? 0 : writer.getDroppedCount();
+	}
+
+
+
+	/** Everything in the Prometheus text exposition format. */
+	public String toPrometheusText() {
+		StringBuilder out = new StringBuilder(2048);
+		counter(out, "whg_frames_total", "Frames drawn", getFrames());
+		counter(out, "whg_dropped_frames_total", "Frames that came late", getDroppedFrames());
+		counter(out, "whg_ticks_total", "Simulation ticks run", getTicks());
+		counter(out, "whg_deaths_total", "Player deaths", getDeaths());
+		counter(out, "whg_levels_completed_total", "Levels completed", getLevelsCompleted());
+		counter(out, "whg_udp_packets_sent_total", "UDP packets sent to the server", getUdpPacketsSent());
+		counter(out, "whg_udp_packets_received_total", "UDP packets received from the server", getUdpPacketsReceived());
+		counter(out, "whg_udp_timeouts_total", "Player list requests that timed out", getUdpTimeouts());
+		gauge(out, "whg_remote_players", "Other players currently visible", getRemotePlayers());
+		counter(out, "whg_tilt_samples_total", "Tilt readings received from the FPGA", getTiltSamples());
+		gauge(out, "whg_log_queue_depth", "Log messages waiting to be written", getLogQueueDepth());
+		counter(out, "whg_log_messages_dropped_total", "Log messages dropped because the queue was full", getLogMessagesDropped());
+		return out.toString();
+	}
+
+
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		metric(out, name, help, "counter", value);
+	}
+
+
+
+	private static void gauge(StringBuilder out, String name, String help, long value) {
+		metric(out, name, help, "gauge", value);
+	}
+
+
+
+	private static void metric(StringBuilder out, String name, String help, String type, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+
+
+	private static void serve(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = instance.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+}
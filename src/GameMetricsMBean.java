@@ -0,0 +1,32 @@
+package whg;
+
+/**
+ * What {@link GameMetrics} shows over JMX, under whg:type=GameMetrics.
+ */
+public interface GameMetricsMBean {
+
+	long getFrames();
+
+	long getDroppedFrames();
+
+	long getTicks();
+
+	long getDeaths();
+
+	long getLevelsCompleted();
+
+	long getUdpPacketsSent();
+
+	long getUdpPacketsReceived();
+
+	long getUdpTimeouts();
+
+	int getRemotePlayers();
+
+	long getTiltSamples();
+
+	int getLogQueueDepth();
+
+	long getLogMessagesDropped();
+
+}
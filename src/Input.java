@@ -14,6 +14,8 @@ import kuusisto.tinysound.TinySound;
 
 public class Input {
 
+	private static final Trace.Point KEY_TYPED = Trace.point(Trace.Category.INPUT, Trace.DEBUG);
+
 	/** The coordinates of the mouse relative to the Game.frame. */
 	static Point mouseCoords = new Point(0, 0);
 
@@ -123,6 +125,10 @@ public class Input {
 				if (e.getKeyCode() < 256) {
 					keys[e.getKeyCode()] = true;
 				}
+
+				if (e.getKeyCode() == KeyEvent.VK_F3) {
+					PerfHud.toggle();
+				}
 				
 				if (e.getKeyCode() == KeyEvent.VK_LEFT) {
 					left.isPressed = true;
@@ -231,7 +237,8 @@ public class Input {
 
 				Game.easyLog(Game.logger, Level.INFO, "Shutting down...");
 
-				if (Game.doLogging) LogZipper.zipLog();
+				StallWatchdog.logReport();
+				Game.closeLog();
 
 				System.exit(0);
 			}
@@ -241,6 +248,6 @@ public class Input {
 		char keyChar = e.getKeyChar();
 		// Append the typed character to the StringBuilder
 		input.append(keyChar);
-		System.out.println("Key typed: " + keyChar);
+		if (KEY_TYPED.enabled()) KEY_TYPED.log("Key typed: " + keyChar);
 	}
 }
@@ -0,0 +1,75 @@
+package whg;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Compiled levels, keyed by level number. Each level is read once, from its
+ * compiled .whgl file if the build produced one or else by compiling its
+ * map files, and kept in memory for the rest of the game.
+ */
+public class LevelCache {
+
+	private static final ConcurrentHashMap<Integer, LevelData> levels = new ConcurrentHashMap<Integer, LevelData>();
+
+	private LevelCache() {
+	}
+
+
+
+	/** @return the level's data, loading it if this is the first time it has been asked for */
+	public static LevelData get(int levelNum) throws IOException {
+		LevelData data = levels.get(levelNum);
+		if (data != null) return data;
+
+		data = load(levelNum);
+		LevelData existing = levels.putIfAbsent(levelNum, data);
+		return existing != null ? existing : data;
+	}
+
+
+
+	/** @return true if the level has already been loaded */
+	public static boolean contains(int levelNum) {
+		return levels.containsKey(levelNum);
+	}
+
+
+
+	public static void clear() {
+		levels.clear();
+	}
+
+
+
+	private static LevelData load(int levelNum) throws IOException {
+		long start = System.nanoTime();
+		String path = LevelCompiler.resourcePath(levelNum);
+
+		InputStream compiled = ClassLoader.getSystemResourceAsStream(path + LevelData.EXTENSION);
+		if (compiled != null) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(compiled))) {
+				LevelData data = LevelData.read(in);
+				Game.easyLog(Game.logger, Level.INFO, "Level " + levelNum + " loaded from "
+						+ path + LevelData.EXTENSION + " in " + (System.nanoTime() - start) / 1000 + " us");
+				return data;
+			} catch (IOException e) {
+				Game.easyLog(Game.logger, Level.WARNING, path + LevelData.EXTENSION
+						+ " could not be read, compiling the map files instead: " + e.getMessage());
+			}
+		}
+
+		LevelCompiler compiler = new LevelCompiler();
+		LevelData data = compiler.compile(levelNum);
+		for (String warning : compiler.getWarnings())
+			Game.easyLog(Game.logger, Level.WARNING, "Level " + levelNum + ": " + warning);
+		Game.easyLog(Game.logger, Level.INFO, "Level " + levelNum + " compiled from its map files in "
+				+ (System.nanoTime() - start) / 1000 + " us");
+		return data;
+	}
+
+}
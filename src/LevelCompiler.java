@@ -0,0 +1,228 @@
+package whg;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Properties;
+
+/**
+ * Turns a level's .properties and map .txt files into {@link LevelData}.
+ * The build runs this ahead of time to write compiled .whgl files next to
+ * the map files; levels without one are compiled when they are first
+ * loaded.
+ *
+ * Usage: java whg.LevelCompiler &lt;maps directory&gt; [output directory]
+ */
+public class LevelCompiler {
+
+	/** Line of the map file the dot list starts on, counting from 0. */
+	private static final int DOT_START_LINE = 19;
+
+	/** Problems found in the last level compiled that did not stop it compiling. */
+	private final ArrayList<String> warnings = new ArrayList<String>();
+
+
+
+	/** @return the resource path of a level's files, without an extension */
+	public static String resourcePath(int levelNum) {
+		return "resources/maps/level_" + levelNum;
+	}
+
+
+
+	public ArrayList<String> getWarnings() {
+		return this.warnings;
+	}
+
+
+
+	/** Compile a level from the map files on the classpath. */
+	public LevelData compile(int levelNum) throws IOException {
+		String path = resourcePath(levelNum);
+		InputStream properties = ClassLoader.getSystemResourceAsStream(path + ".properties");
+		if (properties == null) throw new IOException(path + ".properties could not be found");
+		InputStream map = ClassLoader.getSystemResourceAsStream(path + ".txt");
+		if (map == null) {
+			properties.close();
+			throw new IOException(path + ".txt could not be found");
+		}
+
+		try {
+			return compile(properties, map);
+		} finally {
+			properties.close();
+			map.close();
+		}
+	}
+
+
+
+	public LevelData compile(InputStream propertyStream, InputStream mapStream) throws IOException {
+		this.warnings.clear();
+
+		Properties props = new Properties();
+		props.load(propertyStream);
+
+		int id, spawnX, spawnY;
+		try {
+			String[] spawn = props.getProperty("spawn_point").split(",");
+			spawnX = Integer.parseInt(spawn[0]) * 40 + 20;
+			spawnY = Integer.parseInt(spawn[1]) * 40 + 20;
+			id = Integer.parseInt(props.getProperty("level_id"));
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid spawn_point or level_id: " + e, e);
+		}
+		String title = props.getProperty("level_title", "");
+
+		// Coins are listed as x,y-x,y-..., in tiles
+		ArrayList<int[]> coins = new ArrayList<int[]>();
+		String coinData = props.getProperty("coins");
+		if (coinData != null && !coinData.equals("null")) {
+			try {
+				for (String s : coinData.split("-")) {
+					String[] xy = s.split(",");
+					coins.add(new int[] {(int) (Double.parseDouble(xy[0]) * 40), (int) (Double.parseDouble(xy[1]) * 40)});
+				}
+			} catch (RuntimeException e) {
+				throw new IOException("Invalid coins: " + coinData, e);
+			}
+		}
+
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(mapStream, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) lines.add(line.trim());
+
+		// The first rows of the map file are the tile grid
+		StringBuilder mapData = new StringBuilder();
+		for (int i = 0; i < Math.min(GameLevel.GRID_HEIGHT, lines.size()); i++)
+			mapData.append(removeWhitespace(lines.get(i)));
+
+		byte[] tiles = new byte[Math.min(mapData.length(), GameLevel.GRID_WIDTH * GameLevel.GRID_HEIGHT)];
+		for (int i = 0; i < tiles.length; i++) {
+			char tileChar = mapData.charAt(i);
+			int tileType = Character.getNumericValue(tileChar);
+			if (tileType >= 0 && tileType <= 9) {
+				tiles[i] = (byte) tileType;
+			} else {
+				this.warnings.add("Invalid tile character at position " + i
+						+ ": '" + tileChar + "' (code: " + (int) tileChar + ")");
+			}
+		}
+		if (tiles.length != GameLevel.GRID_WIDTH * GameLevel.GRID_HEIGHT)
+			this.warnings.add("Map has " + tiles.length + " tiles");
+
+		// Then come the dots, one per line as x-y-x1,y1-x2,y2-speed-moveToPos1-vertical.
+		// Lines that don't have enough fields are comments.
+		ArrayList<int[]> dotPositions = new ArrayList<int[]>();
+		ArrayList<Double> dotSpeeds = new ArrayList<Double>();
+		ArrayList<Byte> dotFlags = new ArrayList<Byte>();
+		for (int i = DOT_START_LINE; i < lines.size(); i++) {
+			if (lines.get(i).isEmpty()) continue;
+
+			String[] dot = removeWhitespace(lines.get(i)).split("-");
+			if (dot.length < 7) continue;
+			try {
+				String[] pos1 = dot[2].split(","), pos2 = dot[3].split(",");
+				int[] positions = {
+						Integer.parseInt(dot[0]), Integer.parseInt(dot[1]),
+						Integer.parseInt(pos1[0]), Integer.parseInt(pos1[1]),
+						Integer.parseInt(pos2[0]), Integer.parseInt(pos2[1])};
+				double speed = Double.parseDouble(dot[4]);
+				int flags = (Boolean.parseBoolean(dot[5]) ? LevelData.MOVE_TO_POS1 : 0)
+						| (Boolean.parseBoolean(dot[6]) ? LevelData.VERTICAL : 0);
+
+				dotPositions.add(positions);
+				dotSpeeds.add(speed);
+				dotFlags.add((byte) flags);
+			} catch (RuntimeException e) {
+				this.warnings.add("Error parsing dot data: " + lines.get(i));
+			}
+		}
+
+		int[] coinX = new int[coins.size()], coinY = new int[coins.size()];
+		for (int i = 0; i < coins.size(); i++) {
+			coinX[i] = coins.get(i)[0];
+			coinY[i] = coins.get(i)[1];
+		}
+
+		int[] positions = new int[dotPositions.size() * LevelData.DOT_STRIDE];
+		double[] speeds = new double[dotSpeeds.size()];
+		byte[] flags = new byte[dotFlags.size()];
+		for (int i = 0; i < speeds.length; i++) {
+			System.arraycopy(dotPositions.get(i), 0, positions, i * LevelData.DOT_STRIDE, LevelData.DOT_STRIDE);
+			speeds[i] = dotSpeeds.get(i);
+			flags[i] = dotFlags.get(i);
+		}
+
+		return new LevelData(id, title, spawnX, spawnY, tiles, coinX, coinY, positions, speeds, flags);
+	}
+
+
+
+	private static String removeWhitespace(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (!Character.isWhitespace(c)) sb.append(c);
+		}
+		return sb.toString();
+	}
+
+
+
+	/** Compile every level_N map in a directory. */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: java whg.LevelCompiler <maps directory> [output directory]");
+			System.exit(2);
+		}
+
+		File mapsDir = new File(args[0]);
+		File outDir = new File(args.length > 1 ? args[1] : args[0]);
+		File[] files = mapsDir.listFiles();
+		if (files == null) {
+			System.err.println(mapsDir + " is not a directory");
+			System.exit(1);
+		}
+		outDir.mkdirs();
+
+		LevelCompiler compiler = new LevelCompiler();
+		int compiled = 0;
+		boolean failed = false;
+		for (File properties : files) {
+			String name = properties.getName();
+			if (!name.startsWith("level_") || !name.endsWith(".properties")) continue;
+
+			String base = name.substring(0, name.length() - ".properties".length());
+			File map = new File(mapsDir, base + ".txt");
+			File out = new File(outDir, base + LevelData.EXTENSION);
+
+			try (InputStream propertyStream = new FileInputStream(properties);
+					InputStream mapStream = new FileInputStream(map)) {
+				LevelData data = compiler.compile(propertyStream, mapStream);
+				try (DataOutputStream dataOut = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(out)))) {
+					data.write(dataOut);
+				}
+				for (String warning : compiler.getWarnings()) System.err.println(base + ": " + warning);
+				compiled++;
+			} catch (IOException e) {
+				System.err.println(base + ": " + e.getMessage());
+				failed = true;
+			}
+		}
+
+		System.out.println("Compiled " + compiled + " levels into " + outDir);
+		if (failed) System.exit(1);
+	}
+
+}
@@ -0,0 +1,141 @@
+package whg;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Everything needed to build a level, in the form produced by
+ * {@link LevelCompiler}. Instances are shared through {@link LevelCache} and
+ * never modified, so a GameLevel makes its own tiles, coins and dots from
+ * them.
+ *
+ * The compiled file is the fields below, in order, written with a
+ * DataOutputStream after a magic number and format version.
+ */
+public class LevelData {
+
+	/** File extension of compiled levels. */
+	public static final String EXTENSION = ".whgl";
+
+	/** "WHGL" */
+	private static final int MAGIC = 0x5748474C;
+
+	private static final int VERSION = 1;
+
+	/** Dot flags. */
+	static final int MOVE_TO_POS1 = 1, VERTICAL = 2;
+
+	/** Ints stored per dot: x, y, pos1 x, pos1 y, pos2 x, pos2 y, all in tiles. */
+	static final int DOT_STRIDE = 6;
+
+	final int id;
+
+	final String title;
+
+	/** Spawn point, in pixels. */
+	final int spawnX, spawnY;
+
+	/** Tile types in reading order, GameLevel.GRID_WIDTH per row. */
+	final byte[] tiles;
+
+	/** Coin positions, in pixels. */
+	final int[] coinX, coinY;
+
+	/** DOT_STRIDE positions per dot. */
+	final int[] dotPositions;
+
+	final double[] dotSpeeds;
+
+	final byte[] dotFlags;
+
+	LevelData(int id, String title, int spawnX, int spawnY, byte[] tiles, int[] coinX, int[] coinY,
+			int[] dotPositions, double[] dotSpeeds, byte[] dotFlags) {
+		this.id = id;
+		this.title = title;
+		this.spawnX = spawnX;
+		this.spawnY = spawnY;
+		this.tiles = tiles;
+		this.coinX = coinX;
+		this.coinY = coinY;
+		this.dotPositions = dotPositions;
+		this.dotSpeeds = dotSpeeds;
+		this.dotFlags = dotFlags;
+	}
+
+
+
+	public int getDotCount() {
+		return this.dotSpeeds.length;
+	}
+
+
+
+	public int getCoinCount() {
+		return this.coinX.length;
+	}
+
+
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+
+		out.writeInt(this.id);
+		out.writeUTF(this.title);
+		out.writeInt(this.spawnX);
+		out.writeInt(this.spawnY);
+
+		out.writeShort(this.tiles.length);
+		out.write(this.tiles);
+
+		out.writeShort(this.coinX.length);
+		for (int i = 0; i < this.coinX.length; i++) {
+			out.writeInt(this.coinX[i]);
+			out.writeInt(this.coinY[i]);
+		}
+
+		out.writeShort(this.dotSpeeds.length);
+		for (int i = 0; i < this.dotSpeeds.length; i++) {
+			for (int j = 0; j < DOT_STRIDE; j++) out.writeInt(this.dotPositions[i * DOT_STRIDE + j]);
+			out.writeDouble(this.dotSpeeds[i]);
+			out.writeByte(this.dotFlags[i]);
+		}
+	}
+
+
+
+	public static LevelData read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) throw new IOException("Not a compiled level");
+		int version = in.readUnsignedShort();
+		if (version != VERSION) throw new IOException("Unsupported compiled level version " + version);
+
+		int id = in.readInt();
+		String title = in.readUTF();
+		int spawnX = in.readInt();
+		int spawnY = in.readInt();
+
+		byte[] tiles = new byte[in.readUnsignedShort()];
+		in.readFully(tiles);
+
+		int coinCount = in.readUnsignedShort();
+		int[] coinX = new int[coinCount], coinY = new int[coinCount];
+		for (int i = 0; i < coinCount; i++) {
+			coinX[i] = in.readInt();
+			coinY[i] = in.readInt();
+		}
+
+		int dotCount = in.readUnsignedShort();
+		int[] dotPositions = new int[dotCount * DOT_STRIDE];
+		double[] dotSpeeds = new double[dotCount];
+		byte[] dotFlags = new byte[dotCount];
+		for (int i = 0; i < dotCount; i++) {
+			for (int j = 0; j < DOT_STRIDE; j++) dotPositions[i * DOT_STRIDE + j] = in.readInt();
+			dotSpeeds[i] = in.readDouble();
+			dotFlags[i] = in.readByte();
+		}
+
+		return new LevelData(id, title, spawnX, spawnY, tiles, coinX, coinY, dotPositions, dotSpeeds, dotFlags);
+	}
+
+}
@@ -0,0 +1,98 @@
+package whg;
+
+import java.awt.geom.Path2D;
+
+/**
+ * Traces the outline of a set of grid cells into a single path, one closed
+ * polygon per boundary, with each corner pushed out by a border width. This
+ * gives the same shape as adding a slightly enlarged rectangle for every
+ * cell to an Area, in time proportional to the size of the grid.
+ */
+public final class LevelOutline {
+
+	/** Directions, clockwise: right, down, left, up. */
+	private static final int[] DX = {1, 0, -1, 0};
+	private static final int[] DY = {0, 1, 0, -1};
+
+	private LevelOutline() {
+	}
+
+
+
+	/**
+	 * @param filled which cells are inside, indexed by row * columns + column
+	 * @param border how far to grow the outline, in pixels
+	 * @param offsetX where the grid's top left corner is drawn
+	 * @param offsetY where the grid's top left corner is drawn
+	 */
+	public static Path2D.Float trace(boolean[] filled, int columns, int rows, int cellSize,
+			int border, int offsetX, int offsetY) {
+		int vertexColumns = columns + 1;
+
+		// Each vertex of the grid gets a bit per direction in which a
+		// boundary edge leaves it. Edges run clockwise around the filled
+		// cells, so the inside is always on the right.
+		int[] edges = new int[vertexColumns * (rows + 1)];
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				if (!filled[r * columns + c]) continue;
+				if (r == 0 || !filled[(r - 1) * columns + c])
+					edges[r * vertexColumns + c] |= 1 << 0;
+				if (c == columns - 1 || !filled[r * columns + c + 1])
+					edges[r * vertexColumns + c + 1] |= 1 << 1;
+				if (r == rows - 1 || !filled[(r + 1) * columns + c])
+					edges[(r + 1) * vertexColumns + c + 1] |= 1 << 2;
+				if (c == 0 || !filled[r * columns + c - 1])
+					edges[(r + 1) * vertexColumns + c] |= 1 << 3;
+			}
+		}
+
+		int[] remaining = edges.clone();
+		Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO);
+
+		for (int start = 0; start < remaining.length; start++) {
+			while (remaining[start] != 0) {
+				int startDir = Integer.numberOfTrailingZeros(remaining[start]);
+				int vertex = start;
+				int dir = startDir;
+				boolean first = true;
+
+				do {
+					remaining[vertex] &= ~(1 << dir);
+					int next = vertex + DY[dir] * vertexColumns + DX[dir];
+					int nextDir = nextDirection(edges[next], dir);
+
+					if (nextDir != dir) {
+						int x = next % vertexColumns, y = next / vertexColumns;
+						// Both edges' outward normals point to their left
+						float px = x * cellSize + offsetX + border * (DY[dir] + DY[nextDir]);
+						float py = y * cellSize + offsetY - border * (DX[dir] + DX[nextDir]);
+						if (first) path.moveTo(px, py);
+						else path.lineTo(px, py);
+						first = false;
+					}
+
+					vertex = next;
+					dir = nextDir;
+				} while (vertex != start || dir != startDir);
+
+				path.closePath();
+			}
+		}
+		return path;
+	}
+
+
+
+	/**
+	 * Where two cells touch only at a corner, the outline turns right,
+	 * keeping to the cell it was going round, so each polygon stays simple.
+	 */
+	private static int nextDirection(int edges, int dir) {
+		int right = (dir + 1) & 3, left = (dir + 3) & 3;
+		if ((edges & (1 << right)) != 0) return right;
+		if ((edges & (1 << dir)) != 0) return dir;
+		return left;
+	}
+
+}
@@ -0,0 +1,85 @@
+package whg;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+/**
+ * Builds levels on a background thread before they are needed, so moving
+ * to the next level only swaps a reference. Recently played levels are kept,
+ * up to {@link #CAPACITY}, and reset when they are played again.
+ */
+public class LevelPrefetcher {
+
+	/** Number of built levels kept, counting ones still being built. */
+	private static final int CAPACITY = 4;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "Level Prefetcher");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	/** Built or building levels by level number, least recently used first. */
+	private final LinkedHashMap<Integer, Future<GameLevel>> levels =
+			new LinkedHashMap<Integer, Future<GameLevel>>(CAPACITY * 2, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Future<GameLevel>> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+
+
+
+	/** Start building a level in the background, unless it is already built or being built. */
+	public synchronized void prefetch(final int levelNum) {
+		if (this.levels.containsKey(levelNum)) return;
+		this.levels.put(levelNum, this.executor.submit(() -> build(levelNum)));
+	}
+
+
+
+	/**
+	 * @return the level, ready to play. If it hasn't been prefetched it is
+	 * built now; if it is still being built this waits for it.
+	 */
+	public GameLevel take(int levelNum) {
+		Future<GameLevel> future;
+		synchronized (this) {
+			future = this.levels.get(levelNum);
+		}
+
+		GameLevel level = null;
+		if (future != null) {
+			try {
+				level = future.get();
+				level.reset();
+			} catch (InterruptedException | ExecutionException e) {
+				Game.easyLog(Game.logger, Level.WARNING, "Prefetching level " + levelNum + " failed:\n" + Game.getStringFromStackTrace(e));
+			}
+		}
+
+		if (level == null) {
+			level = build(levelNum);
+			synchronized (this) {
+				this.levels.put(levelNum, CompletableFuture.completedFuture(level));
+			}
+		}
+		return level;
+	}
+
+
+
+	private static GameLevel build(int levelNum) {
+		GameLevel level = new GameLevel();
+		level.load(levelNum);
+		return level;
+	}
+
+}
@@ -0,0 +1,201 @@
+package whg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The files in the log directory. Messages go to an active segment named
+ * after the day, such as 24-05-31.log. Once it reaches a size limit or age
+ * limit, or the day changes, it is renamed to a numbered segment, such as
+ * 24-05-31.3.log, and gzipped in the background into 24-05-31.3.log.gz.
+ *
+ * Nothing is ever decompressed. Segments left uncompressed by a crash are
+ * compressed when the game next starts.
+ *
+ * The limits are set with -Dwhg.logSegmentBytes and -Dwhg.logSegmentMinutes.
+ */
+public class LogSegments {
+
+	private static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+	private static final long DEFAULT_MAX_MINUTES = 60;
+
+	/** How long closing waits for the last segments to be compressed. */
+	private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+	/** An active segment, or a numbered one that hasn't been compressed yet. */
+	private static final Pattern UNCOMPRESSED = Pattern.compile("(.+?)(\\.\\d+)?\\.log");
+
+	private final Path directory;
+
+	private final long maxBytes;
+
+	private final long maxAgeMillis;
+
+	/** Only used on the log writer thread. */
+	private final SimpleDateFormat dayFormat = new SimpleDateFormat("YY-MM-dd");
+
+	private final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "Log Compressor");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	/** The day and time the active segment was opened. */
+	private String activeDay;
+	private long activeOpened;
+
+	public LogSegments(Path directory) {
+		this(directory, Long.getLong("whg.logSegmentBytes", DEFAULT_MAX_BYTES),
+				TimeUnit.MINUTES.toMillis(Long.getLong("whg.logSegmentMinutes", DEFAULT_MAX_MINUTES)));
+	}
+
+	public LogSegments(Path directory, long maxBytes, long maxAgeMillis) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+
+
+	/**
+	 * Seal any segments left by earlier runs, compressing them in the
+	 * background, and open a new active segment.
+	 */
+	public FileChannel open() throws IOException {
+		Files.createDirectories(this.directory);
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(".gz.tmp")) {
+					Files.deleteIfExists(file);
+					continue;
+				}
+
+				Matcher m = UNCOMPRESSED.matcher(name);
+				if (!m.matches()) continue;
+				if (m.group(2) == null) seal(file, m.group(1));
+				else compressLater(file);
+			}
+		}
+
+		return openActive(System.currentTimeMillis());
+	}
+
+
+
+	/** @return true if the active segment is full, too old, or from an earlier day */
+	public boolean needsRotation(FileChannel channel, long now) throws IOException {
+		return channel.size() >= this.maxBytes
+				|| now - this.activeOpened >= this.maxAgeMillis
+				|| !this.dayFormat.format(new Date(now)).equals(this.activeDay);
+	}
+
+
+
+	/** Close the active segment, queue it for compression and open a new one. */
+	public FileChannel rotate(FileChannel channel) throws IOException {
+		channel.close();
+		seal(activePath(this.activeDay), this.activeDay);
+		return openActive(System.currentTimeMillis());
+	}
+
+
+
+	/** Close and compress the active segment, waiting a short time for compression to finish. */
+	public void close(FileChannel channel) throws IOException {
+		channel.close();
+		seal(activePath(this.activeDay), this.activeDay);
+		this.compressor.shutdown();
+		try {
+			this.compressor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+
+	private FileChannel openActive(long now) throws IOException {
+		this.activeDay = this.dayFormat.format(new Date(now));
+		this.activeOpened = now;
+		return FileChannel.open(activePath(this.activeDay), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+
+
+	private Path activePath(String day) {
+		return this.directory.resolve(day + ".log");
+	}
+
+
+
+	/** Rename an active segment to the next free number for its day and queue it for compression. */
+	private void seal(Path active, String day) throws IOException {
+		if (!Files.exists(active)) return;
+		if (Files.size(active) == 0) {
+			Files.delete(active);
+			return;
+		}
+
+		Path segment;
+		for (int n = 1; ; n++) {
+			segment = this.directory.resolve(day + "." + n + ".log");
+			if (!Files.exists(segment) && !Files.exists(this.directory.resolve(day + "." + n + ".log.gz"))) break;
+		}
+		Files.move(active, segment, StandardCopyOption.ATOMIC_MOVE);
+		compressLater(segment);
+	}
+
+
+
+	private void compressLater(final Path segment) {
+		this.compressor.submit(() -> {
+			try {
+				compress(segment);
+			} catch (IOException e) {
+				System.err.println("Could not compress " + segment + ": " + e);
+			}
+		});
+	}
+
+
+
+	/**
+	 * Gzip a segment into a temporary file, move it into place, then delete
+	 * the original, so a crash at any point leaves at least one whole copy.
+	 */
+	private static void compress(Path segment) throws IOException {
+		Path gz = segment.resolveSibling(segment.getFileName() + ".gz");
+		Path tmp = segment.resolveSibling(segment.getFileName() + ".gz.tmp");
+
+		try (InputStream in = Files.newInputStream(segment);
+				OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+		}
+
+		Files.move(tmp, gz, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		Files.delete(segment);
+	}
+
+}
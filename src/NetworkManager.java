@@ -15,10 +15,6 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.util.UUID;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.net.SocketTimeoutException;
@@ -35,33 +31,26 @@ public class NetworkManager {
     private String playerId;
     private String combatTag;
     private boolean connected = false;
-    private ScheduledExecutorService scheduler;
     
     // Remote player tracking
     private RemotePlayer[] visiblePlayers = new RemotePlayer[20];
     private int playerCount = 0;
-    private ExecutorService udpExecutor;
     private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
 
-    // Position and velocity tracking
-    private int lastSentX = -1;
-    private int lastSentY = -1;
-    private int velocityX = 0;
-    private int velocityY = 0;
+    // Player list round trips, 1 ms buckets up to half a second
+    private final TimeHistogram roundTrips = new TimeHistogram(200, 1_000_000L, 500);
+
     private InetAddress serverAddr;
     
-    // UDP networking
-    private DatagramSocket udpSocket;
+    // UDP networking, all on one channel, see UdpLoop
+    private UdpLoop udpLoop;
     private int positionUpdatePort = 8089; // Port for position updates
     private int playerListPort = 8090;     // Port for player list requests
     private byte[] udpBuffer = new byte[2048];
-    
-    // Threshold settings
-    private static final long POSITION_UPDATE_INTERVAL = 75;
+    private long lastServerTimestamp = 0; // Of the newest player list applied
     
     // Connection management
     private HttpURLConnection persistentConnection;
-    private long lastPositionSendTime = 0;
     
     private boolean initialized = false;
     
@@ -82,7 +71,6 @@ public class NetworkManager {
         
         this.serverUrl = serverUrl;
         this.playerId = username;
-        this.udpExecutor = Executors.newSingleThreadExecutor();
         
         Game.easyLog(Game.logger, Level.INFO, "NetworkManager initialized with server: " + serverUrl);
         initialized = true;
@@ -118,17 +106,10 @@ public class NetworkManager {
                 return false;
             }
             
-            // Setup UDP socket
-            try {
-                udpSocket = new DatagramSocket();
+            // Test UDP connectivity on a short-lived blocking socket
+            try (DatagramSocket udpSocket = new DatagramSocket()) {
                 udpSocket.setSoTimeout(1000);  // 1 second timeout
-            } catch (Exception e) {
-                Game.easyLog(Game.logger, Level.SEVERE, "Failed to create UDP socket: " + e.getMessage());
-                return false;
-            }
-            
-            // Test UDP connectivity
-            try {
+                
                 // Send a test packet to the player list port
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 DataOutputStream dos = new DataOutputStream(baos);
@@ -189,15 +170,16 @@ public class NetworkManager {
                 return false;
             }
             
-            // Setup scheduler for periodic updates
-            if (scheduler != null && !scheduler.isShutdown()) {
-                scheduler.shutdown();
+            // Start sending positions and fetching the player list
+            if (udpLoop != null) {
+                udpLoop.close();
             }
-            
-            scheduler = Executors.newScheduledThreadPool(1);
-            scheduler.scheduleAtFixedRate(() -> {
-                fetchUpdatesAsync();
-            }, 0, 75, TimeUnit.MILLISECONDS);
+            lastServerTimestamp = 0;
+            udpLoop = new UdpLoop(this,
+                new InetSocketAddress(serverAddr, positionUpdatePort),
+                new InetSocketAddress(serverAddr, playerListPort),
+                playerId);
+            udpLoop.start();
             
             connected = true;
             Game.easyLog(Game.logger, Level.INFO, "Connected to server: " + serverUrl);
@@ -207,14 +189,9 @@ public class NetworkManager {
             Game.easyLog(Game.logger, Level.SEVERE, "Failed to connect to server: " + e.getMessage());
             
             // Clean up resources on failed connection
-            if (udpSocket != null && !udpSocket.isClosed()) {
-                udpSocket.close();
-                udpSocket = null;
-            }
-            
-            if (scheduler != null && !scheduler.isShutdown()) {
-                scheduler.shutdown();
-                scheduler = null;
+            if (udpLoop != null) {
+                udpLoop.close();
+                udpLoop = null;
             }
             
             return false;
@@ -223,12 +200,9 @@ public class NetworkManager {
     
     public void disconnect() {
         this.connected = false;
-        if (scheduler != null) {
-            scheduler.shutdown();
-        }
-        
-        if (udpSocket != null && !udpSocket.isClosed()) {
-            udpSocket.close();
+        if (udpLoop != null) {
+            udpLoop.close();
+            udpLoop = null;
         }
         
         if (persistentConnection != null) {
@@ -240,88 +214,33 @@ public class NetworkManager {
             persistentConnection = null;
         }
         
-        udpExecutor.shutdown();
-        
         Game.easyLog(Game.logger, Level.INFO, "Disconnected from server");
     }
     
-    private void updateVelocity(int newX, int newY) {
-        if (lastSentX != -1 && lastSentY != -1) {
-            int deltaX = newX - lastSentX;
-            int deltaY = newY - lastSentY;
-            velocityX = deltaX;
-            velocityY = deltaY;
-        }
-    }
-
+    /**
+     * Hand the player's latest position to the network loop, which sends the
+     * newest one it has every UdpLoop.POSITION_INTERVAL_NANOS. Cheap enough
+     * to call every tick.
+     */
     public void sendPlayerPosition(int x, int y, Color playerColor) {
-        if (!connected || udpSocket == null) return;
-
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastPositionSendTime < POSITION_UPDATE_INTERVAL) {
-            return;
-        }
-        
-        try {
-            updateVelocity(x, y);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeUTF(playerId); // 2-byte length + UTF-8 string
-            dos.writeLong(currentTime); // 8 bytes
-            dos.writeInt(x); // 4 bytes
-            dos.writeInt(y); // 4 bytes
-            dos.writeInt(velocityX); // 4 bytes
-            dos.writeInt(velocityY); // 4 bytes
-            dos.writeUTF(playerColor.equals(Color.RED) ? "red" : "green"); // 2-byte length + UTF-8 string
-            byte[] data = baos.toByteArray();
-
-            InetAddress serverAddr = InetAddress.getByName(new URI(serverUrl).getHost());
-            DatagramPacket packet = new DatagramPacket(data, data.length, serverAddr, positionUpdatePort);
-            udpSocket.send(packet);
-            lastPositionSendTime = currentTime;
-            lastSentX = x;
-            lastSentY = y;
-        } catch (Exception e) {
-            Game.easyLog(Game.logger, Level.SEVERE, "Error sending UDP position update: " + e.getMessage());
-        }
+        UdpLoop loop = udpLoop;
+        if (!connected || loop == null) return;
+        loop.publishPosition(x, y, playerColor.equals(Color.RED));
     }
 
-    /**
-     * Fetch updates from the server asynchronously
-     */
-    private void fetchUdpUpdates() {
-        if (!connected || udpSocket == null) return;
-        
-        try {
-            // Simply send the UUID as a string without any prefixes or special formatting
-            String simpleRequest = playerId;
-            byte[] requestData = simpleRequest.getBytes("UTF-8");
-            
-            // Send the request to the player list port
-            DatagramPacket requestPacket = new DatagramPacket(
-                requestData, requestData.length, 
-                serverAddr, playerListPort);
-            
-            udpSocket.send(requestPacket);
-            
-            // Prepare to receive the response
-            byte[] responseBuffer = new byte[8192]; // 8KB buffer
-            DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-            
-            // Wait for response with timeout
-            udpSocket.receive(responsePacket);
-            // Process the response
-            processUdpResponse(responsePacket.getData(), responsePacket.getLength());
-            
-        } catch (SocketTimeoutException e) {
-            // This is expected if no response comes back within timeout
-        } catch (Exception e) {
-            Game.easyLog(Game.logger, Level.WARNING, 
-                "Error fetching updates: " + e.getMessage());
-        }
+    /** A player list request, or a subscription renewal, was answered after this long */
+    void recordRoundTrip(long nanos) {
+        roundTrips.record(nanos);
     }
     
-    private void processUdpResponse(byte[] data, int length) {
+    /**
+     * Apply a player list from the server, unless a newer one has already been applied
+     * @param start where the list starts in data, after any reply header
+     * @param length the length of the list
+     */
+    void processUdpResponse(byte[] data, int start, int length) {
+        GameEvents.NetworkDecode event = new GameEvents.NetworkDecode();
+        event.begin();
         rwLock.writeLock().lock();
         try {
             if (length < 12) {
@@ -329,7 +248,7 @@ public class NetworkManager {
                 return;
             }
             
-            int offset = 0;
+            int offset = start;
             int playerCount = ((data[offset] & 0xFF) << 24) | 
                              ((data[offset+1] & 0xFF) << 16) | 
                              ((data[offset+2] & 0xFF) << 8) | 
@@ -347,10 +266,17 @@ public class NetworkManager {
                 ((long)(data[offset+7] & 0xFF));
             offset += 8;
 
+            // Replies can arrive out of order; never go back to an older list
+            if (serverTimestamp < lastServerTimestamp) {
+                return;
+            }
+            lastServerTimestamp = serverTimestamp;
+            long receivedAt = System.currentTimeMillis();
+
             if (playerCount > 0) {
                 this.playerCount = 0;
                 
-                for (int i = 0; i < playerCount && offset < length; i++) {
+                for (int i = 0; i < playerCount && offset < start + length; i++) {
                     byte[] playerIdBytes = new byte[36];
                     System.arraycopy(data, offset, playerIdBytes, 0, 36);
                     String playerId = new String(playerIdBytes).trim();
@@ -400,38 +326,7 @@ public class NetworkManager {
                         ((long)(data[offset+6] & 0xFF) << 8) |
                         (data[offset+7] & 0xFF);
                     offset += 8;
-                    RemotePlayer player = null;
-                    int playerIndex = -1;
-                    
-                    for (int j = 0; j < visiblePlayers.length; j++) {
-                        if (visiblePlayers[j] != null && 
-                            visiblePlayers[j].getPlayerId().equals(playerId)) {
-                            player = visiblePlayers[j];
-                            playerIndex = j;
-                            break;
-                        }
-                    }
-                    
-                    if (player == null) {
-                        for (int j = 0; j < visiblePlayers.length; j++) {
-                            if (visiblePlayers[j] == null) {
-                                visiblePlayers[j] = new RemotePlayer(playerId, tag, x, y, color);
-                                visiblePlayers[j].setVelocity(velX, velY);
-                                visiblePlayers[j].setPacketTimestamp(lastUpdated);
-                                playerIndex = j;
-                                break;
-                            }
-                        }
-                    } else {
-                        boolean updated = player.update(playerId, tag, x, y, color, lastUpdated);
-                        if (updated) {
-                            player.setVelocity(velX, velY);
-                        }
-                    }
-                    
-                    if (playerIndex >= 0) {
-                        this.playerCount = Math.max(this.playerCount, playerIndex + 1);
-                    }
+                    applyPlayer(playerId, tag, x, y, velX, velY, color, lastUpdated, receivedAt);
                 }
                 
                 for (int i = 0; i < this.playerCount; i++) {
@@ -443,7 +338,89 @@ public class NetworkManager {
         } catch (Exception e) {
             Game.easyLog(Game.logger, Level.WARNING, "Error processing UDP response: " + e.getMessage());
         } finally {
+            GameMetrics.setRemotePlayers(this.playerCount);
+            rwLock.writeLock().unlock();
+            event.bytes = length;
+            event.players = this.playerCount;
+            event.commit();
+        }
+    }
+    
+    /** Apply a snapshot in the compact protocol, rebuilt by the network loop's {@link SnapshotDecoder} */
+    void processSnapshot(SnapshotDecoder.Snapshot snapshot, int length) {
+        GameEvents.NetworkDecode event = new GameEvents.NetworkDecode();
+        event.begin();
+        rwLock.writeLock().lock();
+        try {
+            long serverTimestamp = snapshot.getServerTime();
+            if (serverTimestamp < lastServerTimestamp) {
+                return;
+            }
+            lastServerTimestamp = serverTimestamp;
+            long receivedAt = System.currentTimeMillis();
+
+            if (snapshot.size() > 0) {
+                this.playerCount = 0;
+                for (int i = 0; i < snapshot.size(); i++) {
+                    applyPlayer(snapshot.getPlayerId(i), snapshot.getCombatTag(i),
+                        snapshot.getX(i), snapshot.getY(i),
+                        snapshot.getVelocityX(i), snapshot.getVelocityY(i),
+                        snapshot.isRed(i) ? Color.RED : Color.GREEN, snapshot.getChangedAt(i), receivedAt);
+                }
+                
+                for (int i = 0; i < this.playerCount; i++) {
+                    if (visiblePlayers[i] != null) {
+                        visiblePlayers[i].setLastUpdateTime(serverTimestamp);
+                    }
+                }
+            }
+        } finally {
+            GameMetrics.setRemotePlayers(this.playerCount);
             rwLock.writeLock().unlock();
+            event.bytes = length;
+            event.players = this.playerCount;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Update the remote player with this id, or show it if there's room. Call with the write lock held.
+     * @param receivedAt when the list arrived, by the local clock
+     */
+    private void applyPlayer(String playerId, String tag, int x, int y, int velX, int velY, Color color,
+            long lastUpdated, long receivedAt) {
+        RemotePlayer player = null;
+        int playerIndex = -1;
+        
+        for (int j = 0; j < visiblePlayers.length; j++) {
+            if (visiblePlayers[j] != null && 
+                visiblePlayers[j].getPlayerId().equals(playerId)) {
+                player = visiblePlayers[j];
+                playerIndex = j;
+                break;
+            }
+        }
+        
+        if (player == null) {
+            for (int j = 0; j < visiblePlayers.length; j++) {
+                if (visiblePlayers[j] == null) {
+                    visiblePlayers[j] = new RemotePlayer(playerId, tag, x, y, color);
+                    visiblePlayers[j].setVelocity(velX, velY);
+                    visiblePlayers[j].setPacketTimestamp(lastUpdated);
+                    playerIndex = j;
+                    break;
+                }
+            }
+        } else {
+            boolean updated = player.update(playerId, tag, x, y, color, lastUpdated);
+            if (updated) {
+                player.setVelocity(velX, velY);
+            }
+        }
+        
+        if (playerIndex >= 0) {
+            visiblePlayers[playerIndex].setReceivedAt(receivedAt);
+            this.playerCount = Math.max(this.playerCount, playerIndex + 1);
         }
     }
     
@@ -470,6 +447,7 @@ public class NetworkManager {
             
             if (playerRemoved) {
                 compactPlayerArray();
+                GameMetrics.setRemotePlayers(this.playerCount);
             }
         } finally {
             rwLock.writeLock().unlock();
@@ -499,19 +477,36 @@ public class NetworkManager {
         this.playerCount = newCount;
     }
     
-    private void fetchUpdates() {
-        if (!connected) return;
-        long startTime = System.currentTimeMillis();
-        fetchUdpUpdates();
-        long endTime = System.currentTimeMillis();
-        if (endTime - startTime > 100) {
-            Game.easyLog(Game.logger, Level.INFO, "Fetch operation took " + (endTime - startTime) + "ms");
-        }
-        // updateRemotePlayers();
+    /** Round trip times of player list requests and subscription renewals that were answered */
+    public TimeHistogram getRoundTripHistogram() {
+        return roundTrips;
     }
     
-    public void fetchUpdatesAsync() {
-        udpExecutor.submit(this::fetchUpdates);
+    /**
+     * How long ago the other players' last positions arrived. Measured by the
+     * local clock only, as the server's may be set differently.
+     * @param now the current time in milliseconds, from {@link System#currentTimeMillis()}
+     * @param ages filled with the mean and the largest age, in milliseconds
+     * @return the number of players measured
+     */
+    public int getPacketAges(long now, long[] ages) {
+        long total = 0, max = 0;
+        int count = 0;
+        rwLock.readLock().lock();
+        try {
+            for (int i = 0; i < playerCount; i++) {
+                if (visiblePlayers[i] == null) continue;
+                long age = Math.max(0, now - visiblePlayers[i].getReceivedAt());
+                total += age;
+                max = Math.max(max, age);
+                count++;
+            }
+        } finally {
+            rwLock.readLock().unlock();
+        }
+        ages[0] = count == 0 ? 0 : total / count;
+        ages[1] = max;
+        return count;
     }
     
     public RemotePlayer[] getVisiblePlayers() {
@@ -565,13 +560,8 @@ public class NetworkManager {
     }
     
     public void sendPlayerPositionAsync(final int x, final int y, final Color playerColor) {
-        Thread networkThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                sendPlayerPosition(x, y, playerColor);
-            }
-        });
-        networkThread.start();
+        // Never blocks or starts a thread; the network loop does the sending
+        sendPlayerPosition(x, y, playerColor);
     }
 
     /**
@@ -580,6 +570,16 @@ public class NetworkManager {
      * @return True if all players have completed the level and we can proceed
      */
     public boolean sendLevelCompletionToServer(int levelNum) {
+        GameEvents.LevelBarrier event = new GameEvents.LevelBarrier();
+        event.begin();
+        boolean allCompleted = awaitLevelCompletion(levelNum);
+        event.level = levelNum;
+        event.allCompleted = allCompleted;
+        event.commit();
+        return allCompleted;
+    }
+
+    private boolean awaitLevelCompletion(int levelNum) {
         try {
             // Create socket
             Socket socket = new Socket(serverAddr, 5001); // New port for level completion
@@ -0,0 +1,271 @@
+package whg;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * A performance overlay for the level screen, toggled with F3. It shows
+ * how long frames, rendering and simulation ticks take, the tick rate,
+ * heap and garbage collection, with a server the round trip time and
+ * how old the other players' positions are, and with -Dwhg.allocStats=true
+ * the bytes each phase allocates, so a stutter can be traced to
+ * the renderer, the game loop, the collector or the network.
+ *
+ * Timings are always collected into {@link TimeHistogram}s. Drawing the
+ * overlay formats into a reused char buffer and allocates nothing.
+ */
+public final class PerfHud {
+
+	/** Time from one frame starting to the next, 0.25 ms buckets up to 50 ms. */
+	private static final TimeHistogram frames = new TimeHistogram(600, 250_000L, 200);
+
+	/** Time spent drawing a frame, 0.05 ms buckets up to 20 ms. */
+	private static final TimeHistogram renders = new TimeHistogram(600, 50_000L, 400);
+
+	/** Time spent simulating a tick, 0.01 ms buckets up to 5 ms. */
+	private static final TimeHistogram ticks = new TimeHistogram(1000, 10_000L, 500);
+
+	private static final GarbageCollectorMXBean[] collectors;
+
+	private static final Runtime runtime = Runtime.getRuntime();
+
+	private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+	private static final Color BACKGROUND = new Color(0, 0, 0, 170);
+	private static final Color TEXT = new Color(220, 255, 220);
+	private static final Color WARNING = new Color(255, 170, 120);
+
+	private static final int X = 8, Y = 30, LINE_HEIGHT = 14, WIDTH = 430;
+
+	/** Frames later than this, about two refreshes at 60 Hz, are shown as a warning and counted as dropped. */
+	static final long SLOW_FRAME_NANOS = 33_000_000L;
+
+	private static volatile boolean visible = false;
+
+	/** Only used by whichever thread is drawing. */
+	private static long lastFrameStart = 0;
+	private static final char[] line = new char[96];
+	private static int length = 0;
+	private static final long[] packetAges = new long[2];
+
+	/** Ticks and frames over the last whole second. */
+	private static long rateSampleNanos = System.nanoTime();
+	private static long rateSampleTicks = 0;
+	private static int framesSinceSample = 0;
+	private static int ticksPerSecond = 0;
+	private static int framesPerSecond = 0;
+
+	static {
+		List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+		collectors = beans.toArray(new GarbageCollectorMXBean[beans.size()]);
+	}
+
+	private PerfHud() {
+	}
+
+
+
+	public static void toggle() {
+		visible = !visible;
+	}
+
+
+
+	public static boolean isVisible() {
+		return visible;
+	}
+
+
+
+	/** Record a frame drawn between two System.nanoTime() readings. */
+	public static void recordFrame(long startNanos, long endNanos) {
+		renders.record(endNanos - startNanos);
+		if (lastFrameStart != 0) {
+			long interval = startNanos - lastFrameStart;
+			frames.record(interval);
+			if (interval > SLOW_FRAME_NANOS) GameMetrics.droppedFrames.increment();
+		}
+		lastFrameStart = startNanos;
+		GameMetrics.frames.increment();
+		framesSinceSample++;
+	}
+
+
+
+	public static void recordTick(long nanos) {
+		ticks.record(nanos);
+	}
+
+
+
+	/** Draw the overlay in the top left corner, below the level's top bar. */
+	public static void draw(Graphics g, NetworkManager network) {
+		updateRates();
+
+		int lines = 5;
+		if (network != null) lines++;
+		if (AllocationMeter.isEnabled()) lines++;
+		g.setColor(BACKGROUND);
+		g.fillRect(X - 4, Y - 12, WIDTH, lines * LINE_HEIGHT + 6);
+		g.setFont(FONT);
+		int y = Y;
+
+		begin("frame  p50 ");
+		millis(frames.getPercentileNanos(0.5));
+		text(" p95 ");
+		millis(frames.getPercentileNanos(0.95));
+		text(" p99 ");
+		millis(frames.getPercentileNanos(0.99));
+		text(" max ");
+		long maxFrame = frames.getMaxNanos();
+		millis(maxFrame);
+		text(" ms");
+		drawLine(g, y, maxFrame > SLOW_FRAME_NANOS ? WARNING : TEXT);
+
+		begin("render mean ");
+		millis(renders.getMeanNanos());
+		text(" p99 ");
+		millis(renders.getPercentileNanos(0.99));
+		text("  tick mean ");
+		millis(ticks.getMeanNanos());
+		text(" p99 ");
+		millis(ticks.getPercentileNanos(0.99));
+		text(" ms");
+		drawLine(g, y += LINE_HEIGHT, TEXT);
+
+		begin("tps ");
+		number(ticksPerSecond);
+		text("/");
+		number(GameLoop.TICKS_PER_SECOND);
+		text("  fps ");
+		number(framesPerSecond);
+		drawLine(g, y += LINE_HEIGHT, ticksPerSecond < GameLoop.TICKS_PER_SECOND * 9 / 10 ? WARNING : TEXT);
+
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		begin("heap ");
+		number(used >> 20);
+		text("/");
+		number(runtime.maxMemory() >> 20);
+		text(" MB");
+		drawLine(g, y += LINE_HEIGHT, TEXT);
+
+		long gcCount = 0, gcMillis = 0;
+		for (GarbageCollectorMXBean collector : collectors) {
+			gcCount += Math.max(0, collector.getCollectionCount());
+			gcMillis += Math.max(0, collector.getCollectionTime());
+		}
+		begin("gc ");
+		number(gcCount);
+		text(" collections, ");
+		number(gcMillis);
+		text(" ms total");
+		drawLine(g, y += LINE_HEIGHT, TEXT);
+
+		if (network != null) {
+			TimeHistogram roundTrips = network.getRoundTripHistogram();
+			int players = network.getPacketAges(System.currentTimeMillis(), packetAges);
+			begin("net rtt p50 ");
+			millis(roundTrips.getPercentileNanos(0.5));
+			text(" p99 ");
+			millis(roundTrips.getPercentileNanos(0.99));
+			text("  age mean ");
+			number(packetAges[0]);
+			text(" max ");
+			number(packetAges[1]);
+			text(" ms (");
+			number(players);
+			text(")");
+			drawLine(g, y += LINE_HEIGHT, TEXT);
+		}
+
+		if (AllocationMeter.isEnabled()) {
+			begin("alloc B upd ");
+			number(AllocationMeter.get(AllocationMeter.Phase.UPDATE).getMean());
+			text(" ply ");
+			number(AllocationMeter.get(AllocationMeter.Phase.PLAYER_UPDATE).getMean());
+			text(" tiles ");
+			number(AllocationMeter.get(AllocationMeter.Phase.TILES).getMean());
+			text(" dots ");
+			number(AllocationMeter.get(AllocationMeter.Phase.COINS_AND_DOTS).getMean());
+			text(" net ");
+			number(AllocationMeter.get(AllocationMeter.Phase.REMOTE_PLAYERS).getMean());
+			text(" hud ");
+			number(AllocationMeter.get(AllocationMeter.Phase.HUD_TEXT).getMean());
+			drawLine(g, y += LINE_HEIGHT, TEXT);
+		}
+	}
+
+
+
+	private static void updateRates() {
+		long now = System.nanoTime();
+		long elapsed = now - rateSampleNanos;
+		if (elapsed < 1_000_000_000L) return;
+
+		long tickCount = Math.max(0, Game.getTickCount());
+		ticksPerSecond = (int) ((tickCount - rateSampleTicks) * 1_000_000_000L / elapsed);
+		framesPerSecond = (int) (framesSinceSample * 1_000_000_000L / elapsed);
+		rateSampleNanos = now;
+		rateSampleTicks = tickCount;
+		framesSinceSample = 0;
+	}
+
+
+
+	private static void drawLine(Graphics g, int y, Color color) {
+		g.setColor(color);
+		g.drawChars(line, 0, length, X, y);
+	}
+
+
+
+	private static void begin(String s) {
+		length = 0;
+		text(s);
+	}
+
+
+
+	private static void text(String s) {
+		int n = Math.min(s.length(), line.length - length);
+		s.getChars(0, n, line, length);
+		length += n;
+	}
+
+
+
+	private static void number(long value) {
+		if (value < 0) {
+			text("-");
+			value = -value;
+		}
+		int start = length;
+		do {
+			if (length == line.length) break;
+			line[length++] = (char) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+
+		for (int i = start, j = length - 1; i < j; i++, j--) {
+			char c = line[i];
+			line[i] = line[j];
+			line[j] = c;
+		}
+	}
+
+
+
+	/** Append a duration in milliseconds with two decimal places. */
+	private static void millis(long nanos) {
+		long hundredths = (nanos + 5_000L) / 10_000L;
+		number(hundredths / 100);
+		text(".");
+		long fraction = hundredths % 100;
+		if (fraction < 10) text("0");
+		number(fraction);
+	}
+
+}
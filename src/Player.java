@@ -10,21 +10,18 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
 import java.util.logging.Level;
 import java.io.DataInputStream;
 
 
-import kuusisto.tinysound.Sound;
-import kuusisto.tinysound.TinySound;
-import javax.swing.SwingUtilities;
-
 public class Player {
 
 	private String name;
 	private Color playerColor;
 	private int x;
 	private int y;
+	private int prevX;
+	private int prevY;
 	private int snapX;
 	private int snapY;
 	private boolean collidingUp;
@@ -57,6 +54,11 @@ public class Player {
 	private long powerUpEndTime = 0;
 	private static final int MOVEMENT_STEP_BOOST = 2;
 	private static final long POWERUP_DURATION = 5000; // 5 seconds
+
+	/** Tilt readings arrive every tick, so these are sampled. */
+	private static final Trace.Point TILT_READ = Trace.point(Trace.Category.TILT, Trace.DEBUG, 1000);
+	private static final Trace.Point TILT_PACKET = Trace.point(Trace.Category.TILT, Trace.DEBUG, 1000);
+	private static final Trace.Point INVALID_TILT_PACKET = Trace.point(Trace.Category.TILT, Trace.WARN, 1000);
 	public boolean powerupactive = false; 
 
 	//Random PowerUp generator
@@ -107,10 +109,10 @@ public class Player {
 			this.serverThread = new Thread(() -> {
 				try {
 					serverSocket = new ServerSocket(port);
-					System.out.println("Server started on port " + port + ". Waiting for connection...");
+					Trace.log(Trace.Category.TILT, Trace.INFO, "Server started on port " + port + ". Waiting for connection...");
 
 					clientSocket = serverSocket.accept();
-					System.out.println("Connected to client on port " + port + "!");
+					Trace.log(Trace.Category.TILT, Trace.INFO, "Connected to client on port " + port + "!");
 
 					// Use DataInputStream to read bytes
 					dataInputStream = new DataInputStream(clientSocket.getInputStream());
@@ -127,11 +129,11 @@ public class Player {
 							// Update tilt values
 							xTilt = xValue;  // Implicit conversion from short to double
 							yTilt = yValue;  // Implicit conversion from short to double
+							GameMetrics.tiltSamples.increment();
 
-							// Debugging: Print received values
-							//System.out.println("FPGA Server - Received X: " + xTilt + ", Y: " + yTilt);
+							if (TILT_PACKET.enabled()) TILT_PACKET.log("FPGA Server - Received X: " + xTilt + ", Y: " + yTilt);
 						} else {
-							System.out.println("Invalid data received.");
+							if (INVALID_TILT_PACKET.enabled()) INVALID_TILT_PACKET.log("Invalid data received.");
 						}
 					}
 				} catch (Exception e) {
@@ -167,6 +169,8 @@ public class Player {
 		this.name = name;
 		this.x = x;
 		this.y = y;
+		this.prevX = x;
+		this.prevY = y;
 		this.snapX = x/40;
 		this.snapY = y/40;
 		this.collidingUp = false;
@@ -189,12 +193,19 @@ public class Player {
 	public void setName(String name) { this.name = name;}
 
 	public void draw(Graphics g) {
+		draw(g, 1);
+	}
+
+	/** Draw the player between its previous and current position. */
+	public void draw(Graphics g, double alpha) {
+		int drawX = (int) Math.round(GameLoop.interpolate(prevX, x, alpha));
+		int drawY = (int) Math.round(GameLoop.interpolate(prevY, y, alpha));
 		g.setColor(new Color(0, 0, 0, (int) opacity));
-		g.fillRect(x - 15, y - 15 + 22, 31, 31);
+		g.fillRect(drawX - 15, drawY - 15 + 22, 31, 31);
 		// Use the player's color instead of always red
 		g.setColor(new Color(playerColor.getRed(), playerColor.getGreen(),
 				playerColor.getBlue(), (int) opacity));
-		g.fillRect(x-12, y-12 + 22,
+		g.fillRect(drawX-12, drawY-12 + 22,
 				25, 25);
 	}
 
@@ -209,24 +220,19 @@ public class Player {
 
 
 	Tile getRelativeTile(GameLevel level, int x1, int y1, int xOff, int yOff) {
-		for (Tile t : level.getTileMap()) {
-			if (x1/40 + xOff == t.getSnapX() && y1/40 + yOff == t.getSnapY()) {
-				return t;
-			}
-		}
-		return null;
+		return level.getTile(x1/40 + xOff, y1/40 + yOff);
 	}
 	
 
 	
 	
 	Tile getTile(GameLevel level) {
-		for (Tile t : level.getTileMap()) {
-			if (this.x/40 == t.getSnapX() && this.y/40 == t.getSnapY()) {
-				return t;
-			}
-		}
-		return null;
+		return level.getTile(this.x/40, this.y/40);
+	}
+
+	/** True if the tile at (x1, y1), moved over by a number of tiles, is a background tile. */
+	private boolean isBackgroundTile(GameLevel level, int x1, int y1, int xOff, int yOff) {
+		return level.getTileType(x1/40 + xOff, y1/40 + yOff) == 0;
 	}
 
 	boolean doesIntersect(Rectangle a, Rectangle b) {
@@ -234,52 +240,31 @@ public class Player {
 				|| a.y + a.height < b.y || a.y > b.y + b.height);
 	}
 	
+	/** Size of the player's collision box, which is centred on (x, y). */
+	private static final int SIZE = 31;
+
 	public Rectangle getBounds() {
-		return new Rectangle(this.x - 15, this.y - 15, 31, 31);
+		return new Rectangle(this.x - 15, this.y - 15, SIZE, SIZE);
 	}
 	
 	void checkCollisionUp(GameLevel level) {
-		if (getRelativeTile(level, this.x - 14, this.y + 24, 0, -1) != null &&
-				getRelativeTile(level, this.x - 14, this.y + 24, 0, -1).getType() == 0 ||
-				getRelativeTile(level, this.x + 15, this.y + 24, 0, -1) != null &&
-				getRelativeTile(level, this.x + 15, this.y + 24, 0, -1).getType() == 0) {
-			this.collidingUp = true;
-			return;
-		}
-		this.collidingUp = false;
+		this.collidingUp = isBackgroundTile(level, this.x - 14, this.y + 24, 0, -1) ||
+				isBackgroundTile(level, this.x + 15, this.y + 24, 0, -1);
 	}
 	
 	void checkCollisionDown(GameLevel level) {
-		if (getRelativeTile(level, this.x - 14, this.y - 24, 0, 1) != null &&
-				getRelativeTile(level, this.x - 14, this.y - 24, 0, 1).getType() == 0 ||
-				getRelativeTile(level, this.x + 15, this.y - 24, 0, 1) != null &&
-				getRelativeTile(level, this.x + 15, this.y - 24, 0, 1).getType() == 0) {
-			this.collidingDown = true;
-			return;
-		}
-		this.collidingDown = false;
+		this.collidingDown = isBackgroundTile(level, this.x - 14, this.y - 24, 0, 1) ||
+				isBackgroundTile(level, this.x + 15, this.y - 24, 0, 1);
 	}
 	
 	void checkCollisionLeft(GameLevel level) {
-		if (getRelativeTile(level, this.x + 24, this.y - 15, -1, 0) != null &&
-				getRelativeTile(level, this.x + 24, this.y - 15, -1, 0).getType() == 0 ||
-				getRelativeTile(level, this.x + 24, this.y + 14, -1, 0) != null &&
-				getRelativeTile(level, this.x + 24, this.y + 14, -1, 0).getType() == 0) {
-			this.collidingLeft = true;
-			return;
-		}
-		this.collidingLeft = false;
+		this.collidingLeft = isBackgroundTile(level, this.x + 24, this.y - 15, -1, 0) ||
+				isBackgroundTile(level, this.x + 24, this.y + 14, -1, 0);
 	}
 	
 	void checkCollisionRight(GameLevel level) {
-		if (getRelativeTile(level, this.x - 24, this.y - 15, 1, 0) != null &&
-				getRelativeTile(level, this.x - 24, this.y - 15, 1, 0).getType() == 0 ||
-				getRelativeTile(level, this.x - 24, this.y + 15, 1, 0) != null &&
-				getRelativeTile(level, this.x - 24, this.y + 15, 1, 0).getType() == 0) {
-			this.collidingRight = true;
-			return;
-		}
-		this.collidingRight = false;
+		this.collidingRight = isBackgroundTile(level, this.x - 24, this.y - 15, 1, 0) ||
+				isBackgroundTile(level, this.x - 24, this.y + 15, 1, 0);
 	}
 
 	public void respawn(GameLevel level) {
@@ -302,11 +287,25 @@ public class Player {
 	    return this.getBounds().getBounds2D().intersects(other.getBounds2D());
 	}
 
+	boolean collidesWith(Dot dot) {
+		return dot.intersects(this.x - 15, this.y - 15, SIZE, SIZE);
+	}
+
+	boolean collidesWith(Coin coin) {
+		return coin.intersects(this.x - 15, this.y - 15, SIZE, SIZE);
+	}
+
+	boolean collidesWith(Tile tile) {
+		return tile.intersects(this.x - 15, this.y - 15, SIZE, SIZE);
+	}
+
 	private static final double TILT_THRESHOLD_X = 100;
 	private static final double TILT_THRESHOLD_Y = 100;
 	private static final int MOVEMENT_STEP = 1;
 
 	public void update(GameLevel level) {
+		this.prevX = this.x;
+		this.prevY = this.y;
 		if (activePowerUp != null && System.currentTimeMillis() > powerUpEndTime){
 			activePowerUp = null;
 			setPlayerColor(Color.RED);
@@ -319,63 +318,61 @@ public class Player {
 		this.snapX = this.x / 40;
 		this.snapY = this.y / 40;
 
-		// Determine which coin collection to use based on player color
-		ArrayList<Coin> playerCoins;
-		playerCoins = level.coins; // Player 1 coins
-
-		// Check for coin collection
-		if (playerCoins != null) {
-			for (Coin coin : playerCoins) {
-				if (this.collidesWith(coin.getBounds()) && !coin.collected) {
-					coin.collected = true;
+		// Check for coin collection, against the coins near the player only
+		int nearbyCoins = level.findCoinsNear(this.x - 15, this.y - 15, this.x + 16, this.y + 16);
+		for (int i = 0; i < nearbyCoins; i++) {
+			Coin coin = level.nearbyCoin(i);
+			if (this.collidesWith(coin) && !coin.collected) {
+				coin.collected = true;
 
-					// Coin sound
-					TinySound.init();
-					TinySound.loadSound(Player.class.getClassLoader()
-							.getResource("resources/ding.wav")).play();
+				// Coin sound
+				AudioQueue.play(SoundEffect.DING);
 
-					//Randomly assign a power-up
-					activateRandomPowerUp();
-				}
+				//Randomly assign a power-up
+				activateRandomPowerUp();
 			}
 		}
 
 		// Level completion logic
 		if (!level.getTileMap().isEmpty()) {
 			if (level.allCoinsCollected()) {
-				for (Tile t : level.getTileMap()) {
-					if (t.getType() == 3 && this.collidesWith(t.getBounds()) && !hasNotifiedLevelCompletion) {
+				// The player is smaller than a tile, so it can only touch the tiles under its corners
+				for (int corner = 0; corner < 4; corner++) {
+					Tile t = level.getTile(Math.floorDiv(this.x - 15 + (corner & 1) * 30, 40),
+							Math.floorDiv(this.y - 15 + (corner >> 1) * 30, 40));
+					if (t != null && t.getType() == 3 && this.collidesWith(t) && !hasNotifiedLevelCompletion) {
 						// Set flag to prevent multiple notifications
 						if (Game.levelNum == 11){
 							try (Socket socket = new Socket(Game.SERVER_ADDRESS, Game.SERVER_PORT);
 									 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 									 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
 
-									System.out.println("Connected to server.");
+									Trace.log(Trace.Category.HIGHSCORE, Trace.INFO, "Connected to server.");
 
 									out.println("SET_HIGHSCORE " + Game.username + ", " + deaths);
 									String Score = in.readLine();
-									System.out.println("Score: " + Score);
+									Trace.log(Trace.Category.HIGHSCORE, Trace.INFO, "Score: " + Score);
 
 									// Explicitly close the socket and streams
 									out.close();
 									in.close();
 									socket.close();
-									System.out.println("Connection closed.");
+									Trace.log(Trace.Category.HIGHSCORE, Trace.INFO, "Connection closed.");
 
 							} catch (IOException e) {
-									System.err.println("Error: " + e.getMessage());
+									Trace.log(Trace.Category.HIGHSCORE, Trace.ERROR, "Error: " + e.getMessage());
 							}
 						}
 
-						System.out.println("DEBUG: Transitioning from level " + Game.levelNum + " to " + (Game.levelNum+1));
+						GameMetrics.levelsCompleted.increment();
+						Trace.log(Trace.Category.LEVEL, Trace.DEBUG, "Transitioning from level " + Game.levelNum + " to " + (Game.levelNum+1));
 						
 						if (Game.isConnectedToServer() && Game.getNetworkManager() != null) {
 							hasNotifiedLevelCompletion = true;
 							handleMultiplayerLevelCompletion(level);
 						} else {
 							// Not connected to server, use original single player logic
-							proceedToNextLevel(level);
+							proceedToNextLevel();
 						}
 						// Exit the loop to prevent multiple triggers
 						return;
@@ -412,7 +409,7 @@ public class Player {
 			double xTilt = fpgaServer.getXTilt();
 			double yTilt = fpgaServer.getYTilt();
 
-			System.out.println("Received X: " + xTilt + ", Y: " + yTilt);
+			if (TILT_READ.enabled()) TILT_READ.log("Received X: " + xTilt + ", Y: " + yTilt);
 
 			if (xTilt < -TILT_THRESHOLD_X && !this.collidingRight) {
 				this.x += currentMovementStep;  // Move right
@@ -459,8 +456,10 @@ public class Player {
 
 		// Check for collision with dots (instant death)
 		if (!this.dead && activePowerUp != PowerUp.IMMUNITY) {
-			for (Dot dot : level.dots) {
-				if (this.collidesWith(dot.getBounds())) {
+			int nearbyDots = level.findDotsNear(this.x - 15, this.y - 15, this.x + 16, this.y + 16);
+			for (int i = 0; i < nearbyDots; i++) {
+				Dot dot = level.nearbyDot(i);
+				if (this.collidesWith(dot)) {
 					if (activePowerUp == PowerUp.MINUS_DEATHS && !this.already_minus){
 						this.deaths = this.deaths - 1;
 						this.already_minus = true;
@@ -469,12 +468,11 @@ public class Player {
 						this.deaths++;
 					}
 					this.dead = true;
+					GameMetrics.deaths.increment();
 
 					// Play death sound
 					if (!Game.muted) {
-						TinySound.init();
-						TinySound.loadSound(ClassLoader.getSystemResource(
-								"resources/smack.wav")).play();
+						AudioQueue.play(SoundEffect.SMACK, AudioQueue.Priority.HIGH);
 					}
 				}
 			}
@@ -496,19 +494,19 @@ public class Player {
 					if (allPlayersCompleted) {
 						// All players completed the level, proceed to next level
 						Game.setWaitingForOtherPlayers(false);
-						proceedToNextLevelMultiplayer(level);
+						proceedToNextLevelMultiplayer();
 					} else {
 						// There was an error or timeout
 						Game.easyLog(Game.logger, Level.WARNING, "Did not receive confirmation from server that all players completed");
 						// Fall back to single player behavior as a safety net
 						Game.setWaitingForOtherPlayers(false);
-						proceedToNextLevel(level);
+						Game.runOnGameThread(() -> proceedToNextLevel());
 					}
 				} catch (Exception e) {
 					Game.easyLog(Game.logger, Level.SEVERE, "Error handling level completion: " + Game.getStringFromStackTrace(e));
 					// Fall back to single player behavior on error
 					Game.setWaitingForOtherPlayers(false);
-					proceedToNextLevel(level);
+					Game.runOnGameThread(() -> proceedToNextLevel());
 				}
 			}
 		}.start();
@@ -517,8 +515,8 @@ public class Player {
 		hasNotifiedLevelCompletion = true;
 	}
 
-	private void proceedToNextLevelMultiplayer(GameLevel level) {
-		SwingUtilities.invokeLater(() -> {
+	private void proceedToNextLevelMultiplayer() {
+		Game.runOnGameThread(() -> {
 			// Add protection against reloading
 			final int transitioningToLevel = Game.levelNum + 1;
 			Game.levelNum++;
@@ -528,7 +526,7 @@ public class Player {
 				updateHighScore();
 			}
 			
-			level.init(Game.getPlayers()[0], Game.levelNum);
+			Game.loadLevel(Game.getPlayers()[0], Game.levelNum);
 			Game.gameState = Game.LEVEL_TITLE;
 			Game.easyLog(Game.logger, Level.INFO, "Game state set to LEVEL_TITLE after server confirmation");
 			hasNotifiedLevelCompletion = false;
@@ -542,13 +540,13 @@ public class Player {
 			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
 
-			System.out.println("Connected to server.");
+			Trace.log(Trace.Category.HIGHSCORE, Trace.INFO, "Connected to server.");
 			out.println("SET_HIGHSCORE " + Game.username + ", " + deaths);
 			String score = in.readLine();
-			System.out.println("Score: " + score);
-			System.out.println("Connection closed.");
+			Trace.log(Trace.Category.HIGHSCORE, Trace.INFO, "Score: " + score);
+			Trace.log(Trace.Category.HIGHSCORE, Trace.INFO, "Connection closed.");
 		} catch (IOException e) {
-			System.err.println("Error: " + e.getMessage());
+			Trace.log(Trace.Category.HIGHSCORE, Trace.ERROR, "Error: " + e.getMessage());
 		}
 	}
 
@@ -570,11 +568,11 @@ public class Player {
 	}
 
 	// Helper method to handle transition to next level
-	private void proceedToNextLevel(GameLevel level) {
+	private void proceedToNextLevel() {
 		// Add protection against reloading
 		final int transitioningToLevel = Game.levelNum + 1;
 		Game.levelNum++;
-		level.init(Game.getPlayers()[0], Game.levelNum);
+		Game.loadLevel(Game.getPlayers()[0], Game.levelNum);
 		Game.gameState = Game.LEVEL_TITLE;
 		Game.easyLog(Game.logger, Level.INFO, "Game state set to LEVEL_TITLE");
 
@@ -620,13 +618,13 @@ public class Player {
 	
 	
 	public int getWidth() {
-		return (int) this.getBounds().getWidth();
+		return SIZE;
 	}
 	
 	
 	
 	public int getHeight() {
-		return (int) this.getBounds().getHeight();
+		return SIZE;
 	}
 	
 	
@@ -0,0 +1,80 @@
+package whg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes position updates into one reused direct buffer, so sending a
+ * position makes no garbage. The layout is what DataOutputStream used to
+ * write: the player id with writeUTF, then the time, position and velocity,
+ * then the color with writeUTF. The id and both colors are encoded once up
+ * front. Subscribers to the second version of the protocol send the
+ * compact form from {@link #encodeCompact}, see {@link SnapshotProtocol}.
+ */
+final class PositionEncoder {
+
+    private static final byte[] RED = utf("red");
+    private static final byte[] GREEN = utf("green");
+
+    private final ByteBuffer buffer;
+    private final int headerLength;
+
+    /** Marker, session, ack, four varints of at most 5 bytes and the color. */
+    private final ByteBuffer compact = ByteBuffer.allocateDirect(1 + 2 + 5 + 4 * 5 + 1);
+
+    PositionEncoder(String playerId) {
+        byte[] header = utf(playerId);
+        this.headerLength = header.length;
+        this.buffer = ByteBuffer.allocateDirect(header.length + 8 + 4 * 4 + GREEN.length);
+        this.buffer.put(header);
+    }
+
+    /**
+     * @return the buffer, ready to send; it is overwritten by the next call
+     */
+    ByteBuffer encode(long time, int x, int y, int velocityX, int velocityY, boolean red) {
+        buffer.clear();
+        buffer.position(headerLength);
+        buffer.putLong(time);
+        buffer.putInt(x);
+        buffer.putInt(y);
+        buffer.putInt(velocityX);
+        buffer.putInt(velocityY);
+        buffer.put(red ? RED : GREEN);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @param session the session id from the subscription acknowledgement
+     * @param ack see {@link SnapshotDecoder#getAck()}
+     * @return the buffer, ready to send; it is overwritten by the next call
+     */
+    ByteBuffer encodeCompact(int session, int ack, int x, int y, int velocityX, int velocityY, boolean red) {
+        compact.clear();
+        compact.put(SnapshotProtocol.MARKER);
+        compact.putShort((short) session);
+        SnapshotProtocol.putVarint(compact, ack);
+        SnapshotProtocol.putZigZag(compact, x);
+        SnapshotProtocol.putZigZag(compact, y);
+        SnapshotProtocol.putZigZag(compact, velocityX);
+        SnapshotProtocol.putZigZag(compact, velocityY);
+        compact.put(red ? SnapshotProtocol.COLOR_RED : SnapshotProtocol.COLOR_GREEN);
+        compact.flip();
+        return compact;
+    }
+
+    /** A string as writeUTF writes it: a two byte length, then modified UTF-8 */
+    private static byte[] utf(String s) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(s);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't encode " + s, e);
+        }
+    }
+
+}
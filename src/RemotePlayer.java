@@ -16,6 +16,7 @@ public class RemotePlayer {
     // Timing fields
     private long positionTimestamp = 0;
     private long lastUpdateTime = System.currentTimeMillis();
+    private long receivedAt = System.currentTimeMillis(); // Local clock, unlike the packet timestamps
 
     // Target position for interpolation
     private long targetTimestamp;
@@ -92,6 +93,15 @@ public class RemotePlayer {
         return positionTimestamp;
     }
     
+    // Set when the latest player list with this player arrived
+    public void setReceivedAt(long time) {
+        this.receivedAt = time;
+    }
+    
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+    
     // Getters
     public String getPlayerId() { return playerId; }
     public String getCombatTag() { return combatTag; }
@@ -0,0 +1,107 @@
+package whg;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue that any number of threads can add to and take
+ * from. Each slot carries a sequence number telling producers and consumers
+ * whose turn it is, so neither side ever blocks; a full queue simply refuses
+ * new items. Used to hand work to background threads without making the
+ * game thread wait.
+ */
+public class RingBuffer<E> {
+
+	private final AtomicReferenceArray<E> slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+
+	/** Position of the next item to take. */
+	private final AtomicLong head = new AtomicLong();
+
+	/** Position of the next free slot. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** @param capacity the number of items the queue can hold, rounded up to a power of two */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.slots = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) this.sequences.set(i, i);
+		this.mask = size - 1;
+	}
+
+
+
+	/**
+	 * Add an item to the queue.
+	 *
+	 * @return false if the queue was full and the item was not added
+	 */
+	public boolean offer(E item) {
+		long pos = this.tail.get();
+		while (true) {
+			int index = (int) pos & this.mask;
+			long diff = this.sequences.get(index) - pos;
+			if (diff == 0) {
+				if (this.tail.compareAndSet(pos, pos + 1)) {
+					this.slots.set(index, item);
+					this.sequences.set(index, pos + 1);
+					return true;
+				}
+				pos = this.tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				pos = this.tail.get();
+			}
+		}
+	}
+
+
+
+	/** @return the oldest item in the queue, or null if it is empty */
+	public E poll() {
+		long pos = this.head.get();
+		while (true) {
+			int index = (int) pos & this.mask;
+			long diff = this.sequences.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (this.head.compareAndSet(pos, pos + 1)) {
+					E item = this.slots.get(index);
+					this.slots.set(index, null);
+					this.sequences.set(index, pos + this.mask + 1);
+					return item;
+				}
+				pos = this.head.get();
+			} else if (diff < 0) {
+				return null;
+			} else {
+				pos = this.head.get();
+			}
+		}
+	}
+
+
+
+	/** @return roughly how many items are waiting. Exact only when no other thread is using the queue. */
+	public int size() {
+		long size = this.tail.get() - this.head.get();
+		if (size < 0) return 0;
+		return (int) Math.min(size, this.capacity());
+	}
+
+
+
+	public boolean isEmpty() {
+		return this.size() == 0;
+	}
+
+
+
+	public int capacity() {
+		return this.mask + 1;
+	}
+
+}
@@ -0,0 +1,115 @@
+package whg;
+
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Decodes snapshots packed by the server with {@link SnapshotDecoder} and
+ * checks them against the players they should hold. The fixtures are
+ * written by the server's test_snapshot.py, which checks its own encoder
+ * and decoder against the same bytes. Run it from the build directory:
+ *
+ * <pre>
+ * java -cp build/classes:lib/json-simple-1.1.1.jar whg.SnapshotCheck [server/testdata/snapshots.json]
+ * </pre>
+ *
+ * The exit status is 1 if any snapshot decoded differently.
+ */
+public class SnapshotCheck {
+
+	public static void main(String[] args) throws Exception {
+		String path = args.length > 0 ? args[0] : "server/testdata/snapshots.json";
+		JSONArray cases;
+		try (Reader reader = new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8)) {
+			cases = (JSONArray) new JSONParser().parse(reader);
+		}
+
+		List<String> failures = new ArrayList<>();
+		int packets = 0;
+		for (Object c : cases) {
+			JSONObject testCase = (JSONObject) c;
+			SnapshotDecoder decoder = new SnapshotDecoder();
+			JSONArray fixtures = (JSONArray) testCase.get("packets");
+			for (int i = 0; i < fixtures.size(); i++) {
+				String name = testCase.get("name") + " packet " + i;
+				String failure = check(decoder, (JSONObject) fixtures.get(i));
+				if (failure != null) failures.add(name + ": " + failure);
+				packets++;
+			}
+		}
+
+		System.out.println(packets + " snapshots checked");
+		for (String failure : failures) System.out.println("FAIL " + failure);
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+
+
+
+	/** @return what was wrong with the decoded snapshot, or null if nothing */
+	private static String check(SnapshotDecoder decoder, JSONObject fixture) {
+		SnapshotDecoder.Snapshot snapshot = decoder.decode(ByteBuffer.wrap(hex((String) fixture.get("bytes"))));
+		JSONArray players = (JSONArray) fixture.get("players");
+		if (players == null) {
+			return snapshot == null ? null : "decoded a snapshot without its base";
+		}
+		if (snapshot == null) return "not decoded";
+
+		long serverTime = (Long) fixture.get("serverTime");
+		if (snapshot.getServerTime() != serverTime) {
+			return "server time " + snapshot.getServerTime() + ", expected " + serverTime;
+		}
+
+		List<String> decoded = new ArrayList<>();
+		List<String> changed = new ArrayList<>();
+		for (int i = 0; i < snapshot.size(); i++) {
+			decoded.add(describe(snapshot.getPlayerId(i), snapshot.getCombatTag(i), snapshot.getX(i), snapshot.getY(i),
+					snapshot.getVelocityX(i), snapshot.getVelocityY(i), snapshot.isRed(i)));
+			if (snapshot.getChangedAt(i) == serverTime) changed.add(snapshot.getPlayerId(i));
+		}
+		List<String> expected = new ArrayList<>();
+		for (Object p : players) {
+			JSONObject player = (JSONObject) p;
+			expected.add(describe((String) player.get("playerId"), (String) player.get("combatTag"),
+					((Long) player.get("x")).intValue(), ((Long) player.get("y")).intValue(),
+					((Long) player.get("velocityX")).intValue(), ((Long) player.get("velocityY")).intValue(),
+					"red".equals(player.get("color"))));
+		}
+		Collections.sort(decoded);
+		Collections.sort(expected);
+		if (!decoded.equals(expected)) return "players " + decoded + ", expected " + expected;
+
+		List<String> expectedChanged = new ArrayList<>();
+		for (Object id : (JSONArray) fixture.get("changed")) expectedChanged.add((String) id);
+		Collections.sort(changed);
+		Collections.sort(expectedChanged);
+		if (!changed.equals(expectedChanged)) return "changed " + changed + ", expected " + expectedChanged;
+		return null;
+	}
+
+
+
+	private static String describe(String id, String tag, int x, int y, int velocityX, int velocityY, boolean red) {
+		return id + " [" + tag + "] " + x + "," + y + " v" + velocityX + "," + velocityY + (red ? " red" : " green");
+	}
+
+
+
+	private static byte[] hex(String s) {
+		byte[] bytes = new byte[s.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,219 @@
+package whg;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Level;
+
+import static whg.SnapshotProtocol.*;
+
+/**
+ * Rebuilds the players in each {@link SnapshotProtocol} snapshot from the
+ * snapshot it was based on. The latest {@link SnapshotProtocol#HISTORY}
+ * snapshots are kept to base later ones on, and their storage is reused,
+ * so only new players' ids and tags are allocated. Only used on the
+ * network loop thread.
+ */
+final class SnapshotDecoder {
+
+    /** The players in one snapshot, as the server quantized them. */
+    static final class Snapshot {
+        int seq = -1;
+        long serverTime;
+        int size;
+        int[] sessions = new int[16];
+        String[] ids = new String[16];
+        String[] tags = new String[16];
+        int[] x = new int[16];
+        int[] y = new int[16];
+        int[] velocityX = new int[16];
+        int[] velocityY = new int[16];
+        byte[] colors = new byte[16];
+        /** Server time when the player's position, velocity, color or tag last changed. */
+        long[] changedAt = new long[16];
+
+        private void copyFrom(Snapshot base) {
+            ensureCapacity(base.size);
+            size = base.size;
+            System.arraycopy(base.sessions, 0, sessions, 0, size);
+            System.arraycopy(base.ids, 0, ids, 0, size);
+            System.arraycopy(base.tags, 0, tags, 0, size);
+            System.arraycopy(base.x, 0, x, 0, size);
+            System.arraycopy(base.y, 0, y, 0, size);
+            System.arraycopy(base.velocityX, 0, velocityX, 0, size);
+            System.arraycopy(base.velocityY, 0, velocityY, 0, size);
+            System.arraycopy(base.colors, 0, colors, 0, size);
+            System.arraycopy(base.changedAt, 0, changedAt, 0, size);
+        }
+
+        private int indexOf(int session) {
+            for (int i = 0; i < size; i++) {
+                if (sessions[i] == session) return i;
+            }
+            return -1;
+        }
+
+        private int add(int session) {
+            ensureCapacity(size + 1);
+            sessions[size] = session;
+            return size++;
+        }
+
+        private void remove(int i) {
+            size--;
+            sessions[i] = sessions[size];
+            ids[i] = ids[size];
+            tags[i] = tags[size];
+            x[i] = x[size];
+            y[i] = y[size];
+            velocityX[i] = velocityX[size];
+            velocityY[i] = velocityY[size];
+            colors[i] = colors[size];
+            changedAt[i] = changedAt[size];
+            ids[size] = null;
+            tags[size] = null;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= sessions.length) return;
+            int n = Math.max(capacity, sessions.length * 2);
+            sessions = Arrays.copyOf(sessions, n);
+            ids = Arrays.copyOf(ids, n);
+            tags = Arrays.copyOf(tags, n);
+            x = Arrays.copyOf(x, n);
+            y = Arrays.copyOf(y, n);
+            velocityX = Arrays.copyOf(velocityX, n);
+            velocityY = Arrays.copyOf(velocityY, n);
+            colors = Arrays.copyOf(colors, n);
+            changedAt = Arrays.copyOf(changedAt, n);
+        }
+
+        int size() { return size; }
+        long getServerTime() { return serverTime; }
+        String getPlayerId(int i) { return ids[i]; }
+        String getCombatTag(int i) { return tags[i]; }
+        int getX(int i) { return x[i] << QUANTIZE_SHIFT; }
+        int getY(int i) { return y[i] << QUANTIZE_SHIFT; }
+        int getVelocityX(int i) { return velocityX[i]; }
+        int getVelocityY(int i) { return velocityY[i]; }
+        boolean isRed(int i) { return colors[i] == COLOR_RED; }
+        long getChangedAt(int i) { return changedAt[i]; }
+    }
+
+    private final Snapshot[] history = new Snapshot[HISTORY];
+
+    /** The newest snapshot rebuilt, or -1 for none. */
+    private int latest = -1;
+
+    /** Set when a snapshot couldn't be rebuilt, until one without a base arrives. */
+    private boolean needFullSnapshot = false;
+
+    SnapshotDecoder() {
+        for (int i = 0; i < HISTORY; i++) history[i] = new Snapshot();
+    }
+
+    /** Forget every snapshot, as for a new subscription. */
+    void reset() {
+        for (Snapshot s : history) s.seq = -1;
+        latest = -1;
+        needFullSnapshot = false;
+    }
+
+    /**
+     * @return what to acknowledge in position updates: the latest snapshot
+     *         rebuilt + 1, or 0 to ask for one without a base
+     */
+    int getAck() {
+        return needFullSnapshot || latest < 0 ? 0 : latest + 1;
+    }
+
+    /**
+     * Rebuild the snapshot in the buffer, from its marker to its limit.
+     * @return the players it holds, or null if it was out of date or its
+     *         base is gone, in which case a snapshot without one is asked for
+     */
+    Snapshot decode(ByteBuffer buffer) {
+        try {
+            buffer.get(); // MARKER
+            int seq = buffer.getShort() & 0xFFFF;
+            int distance = getVarint(buffer);
+            long serverTime = buffer.getLong();
+
+            if (latest >= 0 && (short) (seq - latest) <= 0) return null;
+
+            Snapshot target = history[seq % HISTORY];
+            target.seq = -1;
+            if (distance == 0) {
+                target.size = 0;
+            } else {
+                int baseSeq = (seq - distance) & 0xFFFF;
+                Snapshot base = history[baseSeq % HISTORY];
+                if (distance >= HISTORY || base.seq != baseSeq) {
+                    needFullSnapshot = true;
+                    return null;
+                }
+                target.copyFrom(base);
+            }
+            target.serverTime = serverTime;
+
+            int count = getVarint(buffer);
+            for (int n = 0; n < count; n++) {
+                int session = getVarint(buffer);
+                int flags = buffer.get() & 0xFF;
+                int i = target.indexOf(session);
+
+                if ((flags & REMOVED) != 0) {
+                    if (i >= 0) target.remove(i);
+                    continue;
+                }
+                if ((flags & NEW) != 0) {
+                    if (i < 0) i = target.add(session);
+                    target.ids[i] = getString(buffer);
+                    target.tags[i] = "";
+                    target.x[i] = 0;
+                    target.y[i] = 0;
+                    target.velocityX[i] = 0;
+                    target.velocityY[i] = 0;
+                    target.colors[i] = 0;
+                } else if (i < 0) {
+                    throw new IllegalArgumentException("Change to unknown session " + session);
+                }
+
+                if ((flags & POSITION) != 0) {
+                    target.x[i] += getZigZag(buffer);
+                    target.y[i] += getZigZag(buffer);
+                }
+                if ((flags & VELOCITY) != 0) {
+                    target.velocityX[i] += getZigZag(buffer);
+                    target.velocityY[i] += getZigZag(buffer);
+                }
+                if ((flags & COLOR) != 0) {
+                    target.colors[i] = buffer.get();
+                }
+                if ((flags & TAG) != 0) {
+                    target.tags[i] = getString(buffer);
+                }
+                if ((flags & (NEW | POSITION | VELOCITY | COLOR | TAG)) != 0) {
+                    target.changedAt[i] = serverTime;
+                }
+            }
+
+            target.seq = seq;
+            latest = seq;
+            needFullSnapshot = false;
+            return target;
+        } catch (RuntimeException e) {
+            Game.easyLog(Game.logger, Level.WARNING, "Bad snapshot: " + e);
+            needFullSnapshot = true;
+            return null;
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.get() & 0xFF;
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+}
@@ -0,0 +1,87 @@
+package whg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The second version of the UDP protocol, used by clients that subscribe
+ * with "SUBSCRIBE2 interval playerId". The server acknowledges with
+ * {@link #SUBSCRIPTION_ACK}, the interval it chose and a 16 bit session id
+ * that stands for the player from then on, and pushes snapshots:
+ *
+ * <pre>
+ * snapshot: MARKER, seq (u16), distance to the base (varint, 0 for none),
+ *           server time in ms (u64), entry count (varint), entries
+ * entry:    session id (varint), flags (u8), then in flag order
+ *           NEW:      player id (u8 length, UTF-8), resets the entry
+ *           POSITION: x and y deltas (zigzag varints), quantized by QUANTIZE_SHIFT
+ *           VELOCITY: velocity deltas (zigzag varints)
+ *           COLOR:    color (u8, COLOR_RED or COLOR_GREEN)
+ *           TAG:      combat tag (u8 length, UTF-8)
+ * </pre>
+ *
+ * Each snapshot is the players whose entries changed since the base, the
+ * snapshot seq - distance, which the client acknowledged in its position
+ * updates. Everything else is the same as in the base. A player that left
+ * is an entry with only REMOVED set. Without a base all the fields are
+ * deltas from zero. Snapshots are kept under {@link #MAX_SNAPSHOT} bytes;
+ * players that don't fit are left as they were in the base, so they catch
+ * up in the next one.
+ *
+ * <pre>
+ * position: MARKER, session id (u16), latest seq received + 1 (varint, 0 to ask
+ *           for a snapshot without a base), x, y, velocity x and y (zigzag
+ *           varints, not quantized), color (u8)
+ * </pre>
+ */
+final class SnapshotProtocol {
+
+    /** First byte of snapshots and position updates. Version 1 packets start with a zero. */
+    static final byte MARKER = (byte) 0xB2;
+
+    /** "WHG2", then the interval in ms and the session id. */
+    static final int SUBSCRIPTION_ACK = 0x57484732;
+
+    /** Snapshots a base can be behind, on both sides. */
+    static final int HISTORY = 32;
+
+    /** Positions are sent in units of 2 pixels. */
+    static final int QUANTIZE_SHIFT = 1;
+
+    /** Stays under the usual MTU once IP and UDP headers are added. */
+    static final int MAX_SNAPSHOT = 1200;
+
+    static final int REMOVED = 0x01, NEW = 0x02, POSITION = 0x04, VELOCITY = 0x08, COLOR = 0x10, TAG = 0x20;
+
+    static final byte COLOR_RED = 1, COLOR_GREEN = 2;
+
+    private SnapshotProtocol() {
+    }
+
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static void putZigZag(ByteBuffer buffer, int value) {
+        putVarint(buffer, (value << 1) ^ (value >> 31));
+    }
+
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    static int getZigZag(ByteBuffer buffer) {
+        int value = getVarint(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+}
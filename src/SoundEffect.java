@@ -0,0 +1,70 @@
+package whg;
+
+import java.net.URL;
+import java.util.logging.Level;
+
+import kuusisto.tinysound.Sound;
+import kuusisto.tinysound.TinySound;
+
+/**
+ * The game's sound effects. Each one is decoded once, when
+ * {@link #preloadAll()} runs at startup, and played from memory after that.
+ */
+public enum SoundEffect {
+
+	/** Played when a coin is collected. */
+	DING("resources/ding.wav"),
+
+	/** Played when the player hits a dot. */
+	SMACK("resources/smack.wav"),
+
+	/** The whoosh at the start of the intro. */
+	DRONE("resources/drone.ogg"),
+
+	/** Played when the player clicks play on the main menu. */
+	BELL("resources/bell.wav");
+
+	private final String resource;
+
+	/** The decoded sound, or null if it has not been loaded. */
+	private volatile Sound sound;
+
+	private SoundEffect(String resource) {
+		this.resource = resource;
+	}
+
+
+
+	/** Decode every sound effect. TinySound must already be initialized. */
+	public static void preloadAll() {
+		for (SoundEffect effect : values()) effect.load();
+		Game.easyLog(Game.logger, Level.INFO, "Sound effects loaded");
+	}
+
+
+
+	private synchronized Sound load() {
+		if (this.sound != null) return this.sound;
+
+		URL url = ClassLoader.getSystemResource(this.resource);
+		if (url == null) {
+			Game.easyLog(Game.logger, Level.SEVERE, "Sound " + this.resource + " could not be found");
+			return null;
+		}
+
+		this.sound = TinySound.loadSound(url);
+		if (this.sound == null)
+			Game.easyLog(Game.logger, Level.SEVERE, "Sound " + this.resource + " could not be loaded");
+		return this.sound;
+	}
+
+
+
+	/** Play the sound. Effects that were not preloaded are loaded on first use. */
+	public void play() {
+		Sound s = this.sound;
+		if (s == null && TinySound.isInitialized()) s = load();
+		if (s != null) s.play();
+	}
+
+}
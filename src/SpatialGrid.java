@@ -0,0 +1,144 @@
+package whg;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid for finding the objects near a point without testing every
+ * object in the level. Objects are referred to by their index in the level's
+ * list and are filed under the cell containing their centre. Each cell is an
+ * intrusive linked list, so moving an object or querying the grid never
+ * allocates.
+ */
+public class SpatialGrid {
+
+	private static final int NONE = -1;
+
+	private final int cellSize;
+	private final int columns;
+	private final int rows;
+
+	/** The first object in each cell, or NONE. */
+	private final int[] cellHead;
+
+	/** Links between objects in the same cell, indexed by object. */
+	private int[] next;
+	private int[] prev;
+
+	/** The cell each object is currently filed under, or NONE. */
+	private int[] cellOf;
+
+	/** Objects found by the last query. */
+	private int[] results = new int[16];
+
+	public SpatialGrid(int columns, int rows, int cellSize) {
+		this.columns = columns;
+		this.rows = rows;
+		this.cellSize = cellSize;
+		this.cellHead = new int[columns * rows];
+		this.clear(0);
+	}
+
+
+
+	/** Remove every object and make room for ids 0 to capacity - 1. */
+	public void clear(int capacity) {
+		Arrays.fill(this.cellHead, NONE);
+		this.next = new int[capacity];
+		this.prev = new int[capacity];
+		this.cellOf = new int[capacity];
+		Arrays.fill(this.cellOf, NONE);
+	}
+
+
+
+	/** File an object under the cell containing (x, y). */
+	public void insert(int id, double x, double y) {
+		link(id, cellIndex(x, y));
+	}
+
+
+
+	/** Move an object to (x, y), changing cells only if it has crossed a cell border. */
+	public void move(int id, double x, double y) {
+		int cell = cellIndex(x, y);
+		if (cell == this.cellOf[id]) return;
+		unlink(id);
+		link(id, cell);
+	}
+
+
+
+	/**
+	 * Find the objects whose centres could lie inside a box. Objects in
+	 * the cells the box overlaps are returned, so callers still need to
+	 * test each one exactly.
+	 *
+	 * @return the number of objects found; read them with {@link #result(int)}
+	 */
+	public int query(double minX, double minY, double maxX, double maxY) {
+		int minCol = column(minX), maxCol = column(maxX);
+		int minRow = row(minY), maxRow = row(maxY);
+		int count = 0;
+
+		for (int r = minRow; r <= maxRow; r++) {
+			for (int c = minCol; c <= maxCol; c++) {
+				for (int id = this.cellHead[r * this.columns + c]; id != NONE; id = this.next[id]) {
+					if (count == this.results.length) this.results = Arrays.copyOf(this.results, count * 2);
+					this.results[count++] = id;
+				}
+			}
+		}
+		return count;
+	}
+
+
+
+	/** @return the i-th object found by the last query */
+	public int result(int i) {
+		return this.results[i];
+	}
+
+
+
+	private void link(int id, int cell) {
+		int head = this.cellHead[cell];
+		this.next[id] = head;
+		this.prev[id] = NONE;
+		if (head != NONE) this.prev[head] = id;
+		this.cellHead[cell] = id;
+		this.cellOf[id] = cell;
+	}
+
+
+
+	private void unlink(int id) {
+		int cell = this.cellOf[id];
+		if (cell == NONE) return;
+		if (this.prev[id] != NONE) this.next[this.prev[id]] = this.next[id];
+		else this.cellHead[cell] = this.next[id];
+		if (this.next[id] != NONE) this.prev[this.next[id]] = this.prev[id];
+		this.cellOf[id] = NONE;
+	}
+
+
+
+	private int cellIndex(double x, double y) {
+		return row(y) * this.columns + column(x);
+	}
+
+
+
+	/** Objects outside the grid are kept in the nearest edge cell. */
+	private int column(double x) {
+		int c = (int) Math.floor(x / this.cellSize);
+		return c < 0 ? 0 : (c >= this.columns ? this.columns - 1 : c);
+	}
+
+
+
+	private int row(double y) {
+		int r = (int) Math.floor(y / this.cellSize);
+		return r < 0 ? 0 : (r >= this.rows ? this.rows - 1 : r);
+	}
+
+}
@@ -0,0 +1,334 @@
+package whg;
+
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Watches threads that must never block, the Swing event dispatch thread
+ * and the game loop, and finds out what they were doing when they did.
+ *
+ * Each watched thread marks when it starts and finishes a unit of work, an
+ * event or a pass of the loop, on a {@link Monitor}. A background thread
+ * checks the monitors every few milliseconds. Once a unit of work runs over
+ * budget it samples the thread's stack until the work finishes, then files
+ * the stall under the code it was stuck in. The worst offenders are kept
+ * in a rolling report that is logged once a minute when it changes and
+ * again when the game exits.
+ *
+ * The budget is set with -Dwhg.stallMillis (default 100). Turn the watchdog
+ * off with -Dwhg.watchdog=false.
+ */
+public final class StallWatchdog {
+
+	private static final long BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("whg.stallMillis", 100));
+
+	private static final long SAMPLE_INTERVAL_MILLIS = 10;
+
+	private static final long REPORT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	/** Offenders kept in the report. When full, the one with the least total stall time is forgotten. */
+	private static final int MAX_OFFENDERS = 16;
+
+	/** Frames kept of each offender's stack. */
+	private static final int STACK_DEPTH = 12;
+
+	private static final Trace.Point STALL = Trace.point(Trace.Category.GAME, Trace.WARN, 1000);
+
+	/** The event dispatch thread. Events are timed by an event queue pushed in front of the system one. */
+	public static final Monitor EDT = new Monitor("EDT");
+
+	/** The game loop, timed per pass: catching up ticks and asking for a frame. */
+	public static final Monitor GAME_LOOP = new Monitor("Game Loop");
+
+	private static final Monitor[] monitors = {EDT, GAME_LOOP};
+
+	/** Only touched while holding the lock on this map. */
+	private static final Map<String, Offender> offenders = new HashMap<String, Offender>();
+	private static boolean reportChanged = false;
+
+	private static Thread watchdog;
+
+	private StallWatchdog() {
+	}
+
+
+
+	/**
+	 * Marks the start and end of each unit of work on one thread. Work can
+	 * nest, as when a modal dialog runs its own event loop inside an event;
+	 * the time is then measured from the latest start or end.
+	 */
+	public static final class Monitor {
+
+		private final String name;
+
+		private volatile Thread thread;
+
+		/** When the current work started, or 0 while idle. */
+		private volatile long busySince = 0;
+
+		/** The start and length of the last work that ran over budget, set when it ends. */
+		private volatile long lastStallStart = 0;
+		private volatile long lastStallNanos = 0;
+
+		private int depth = 0;
+
+		/** Only used by the watchdog thread. */
+		private long sampling = 0;
+		private final Map<String, Sample> samples = new HashMap<String, Sample>();
+
+		private Monitor(String name) {
+			this.name = name;
+		}
+
+
+
+		public void begin() {
+			this.thread = Thread.currentThread();
+			this.depth++;
+			this.busySince = now();
+		}
+
+
+
+		public void end() {
+			long now = now();
+			long start = this.busySince;
+			if (start != 0 && now - start > BUDGET_NANOS) {
+				this.lastStallNanos = now - start;
+				this.lastStallStart = start;
+			}
+			this.depth = Math.max(0, this.depth - 1);
+			this.busySince = this.depth > 0 ? now : 0;
+		}
+
+	}
+
+
+
+	/** Stack samples taken during one stall that share a signature. */
+	private static final class Sample {
+		final StackTraceElement[] stack;
+		int count = 0;
+
+		Sample(StackTraceElement[] stack) {
+			this.stack = stack;
+		}
+	}
+
+
+
+	/** Where stalls happen, across the whole session. */
+	private static final class Offender {
+		final String signature;
+		final String thread;
+		final StackTraceElement[] stack;
+		int stalls = 0;
+		long totalNanos = 0;
+		long worstNanos = 0;
+
+		Offender(String signature, String thread, StackTraceElement[] stack) {
+			this.signature = signature;
+			this.thread = thread;
+			this.stack = stack;
+		}
+	}
+
+
+
+	/** Start watching, unless turned off. The event queue is replaced so that events can be timed. */
+	public static synchronized void start() {
+		if (watchdog != null || !Boolean.parseBoolean(System.getProperty("whg.watchdog", "true"))) return;
+
+		Toolkit.getDefaultToolkit().getSystemEventQueue().push(new EventQueue() {
+			@Override
+			protected void dispatchEvent(AWTEvent event) {
+				EDT.begin();
+				try {
+					super.dispatchEvent(event);
+				} finally {
+					EDT.end();
+				}
+			}
+		});
+
+		watchdog = new Thread(StallWatchdog::watch, "Stall Watchdog");
+		watchdog.setDaemon(true);
+		watchdog.setPriority(Thread.MAX_PRIORITY);
+		watchdog.start();
+	}
+
+
+
+	private static void watch() {
+		long lastReport = now();
+		while (true) {
+			try {
+				Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			for (Monitor monitor : monitors) check(monitor);
+
+			if (now() - lastReport >= REPORT_INTERVAL_NANOS) {
+				lastReport = now();
+				boolean changed;
+				synchronized (offenders) {
+					changed = reportChanged;
+				}
+				if (changed) logReport();
+			}
+		}
+	}
+
+
+
+	private static void check(Monitor monitor) {
+		long start = monitor.busySince;
+
+		// The stall being sampled is over, or a new piece of work began since
+		if (monitor.sampling != 0 && start != monitor.sampling) {
+			long duration = monitor.lastStallStart == monitor.sampling
+					? monitor.lastStallNanos : now() - monitor.sampling;
+			finishStall(monitor, duration);
+		}
+
+		if (start == 0 || now() - start <= BUDGET_NANOS) return;
+
+		Thread thread = monitor.thread;
+		if (thread == null) return;
+		monitor.sampling = start;
+
+		StackTraceElement[] stack = thread.getStackTrace();
+		if (monitor.busySince != start || stack.length == 0) return;
+
+		String signature = signature(stack);
+		Sample sample = monitor.samples.get(signature);
+		if (sample == null) {
+			sample = new Sample(trim(stack));
+			monitor.samples.put(signature, sample);
+		}
+		sample.count++;
+	}
+
+
+
+	/** File a finished stall under the signature it was sampled in most. */
+	private static void finishStall(Monitor monitor, long duration) {
+		String worst = null;
+		Sample worstSample = null;
+		for (Map.Entry<String, Sample> entry : monitor.samples.entrySet()) {
+			if (worstSample == null || entry.getValue().count > worstSample.count) {
+				worst = entry.getKey();
+				worstSample = entry.getValue();
+			}
+		}
+		monitor.samples.clear();
+		monitor.sampling = 0;
+		if (worstSample == null) return;
+
+		synchronized (offenders) {
+			Offender offender = offenders.get(worst);
+			if (offender == null) {
+				if (offenders.size() >= MAX_OFFENDERS) forgetLeastOffender();
+				offender = new Offender(worst, monitor.name, worstSample.stack);
+				offenders.put(worst, offender);
+			}
+			offender.stalls++;
+			offender.totalNanos += duration;
+			offender.worstNanos = Math.max(offender.worstNanos, duration);
+			reportChanged = true;
+		}
+
+		if (STALL.enabled()) {
+			STALL.log(monitor.name + " stalled for " + TimeUnit.NANOSECONDS.toMillis(duration) + "ms in " + worst);
+		}
+	}
+
+
+
+	private static void forgetLeastOffender() {
+		Offender least = null;
+		for (Offender o : offenders.values()) {
+			if (least == null || o.totalNanos < least.totalNanos) least = o;
+		}
+		offenders.remove(least.signature);
+	}
+
+
+
+	/**
+	 * What a stack was doing, in a form that stays the same between samples:
+	 * the method it was in, and the first method of the game's own code it
+	 * was called from.
+	 */
+	private static String signature(StackTraceElement[] stack) {
+		StackTraceElement top = stack[0];
+		if (top.getClassName().startsWith("whg.")) return top.toString();
+
+		String signature = top.getClassName() + "." + top.getMethodName();
+		for (int i = 1; i < stack.length; i++) {
+			if (stack[i].getClassName().startsWith("whg.")) return signature + " from " + stack[i];
+		}
+		return signature;
+	}
+
+
+
+	private static StackTraceElement[] trim(StackTraceElement[] stack) {
+		if (stack.length <= STACK_DEPTH) return stack;
+		StackTraceElement[] trimmed = new StackTraceElement[STACK_DEPTH];
+		System.arraycopy(stack, 0, trimmed, 0, STACK_DEPTH);
+		return trimmed;
+	}
+
+
+
+	/** @return the worst offenders so far, longest total stall time first */
+	public static String getReport() {
+		List<Offender> sorted;
+		synchronized (offenders) {
+			sorted = new ArrayList<Offender>(offenders.values());
+			reportChanged = false;
+		}
+		if (sorted.isEmpty()) return "No stalls over " + TimeUnit.NANOSECONDS.toMillis(BUDGET_NANOS) + "ms";
+		sorted.sort(Comparator.comparingLong((Offender o) -> o.totalNanos).reversed());
+
+		StringBuilder report = new StringBuilder("Stalls over ")
+				.append(TimeUnit.NANOSECONDS.toMillis(BUDGET_NANOS)).append("ms, worst first:");
+		for (Offender o : sorted) {
+			report.append('\n').append(o.thread).append(": ").append(o.stalls).append(" stalls, ")
+					.append(TimeUnit.NANOSECONDS.toMillis(o.totalNanos)).append("ms total, ")
+					.append(TimeUnit.NANOSECONDS.toMillis(o.worstNanos)).append("ms worst, in ")
+					.append(o.signature);
+			for (StackTraceElement frame : o.stack) report.append("\n\tat ").append(frame);
+		}
+		return report.toString();
+	}
+
+
+
+	/** Log the report, if any stalls were seen. */
+	public static void logReport() {
+		synchronized (offenders) {
+			if (offenders.isEmpty()) return;
+		}
+		Game.easyLog(Game.logger, Level.WARNING, getReport());
+	}
+
+
+
+	private static long now() {
+		return System.nanoTime();
+	}
+
+}
@@ -0,0 +1,211 @@
+package whg;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import kuusisto.tinysound.TinySound;
+
+/**
+ * Plays a looping music track by decoding it a little at a time, instead of
+ * decoding the whole file into memory the way TinySound's Music does. A
+ * decoder thread fills a small pool of PCM chunks and a playback thread
+ * writes them to the sound card. At the end of the track the decoder
+ * reopens it and carries on filling the same chunk, so the loop has no gap.
+ *
+ * Enabled with -Dwhg.streamMusic=true.
+ */
+public class StreamingMusic {
+
+	/** Bytes of PCM per chunk; a multiple of every frame size we play. */
+	private static final int CHUNK_BYTES = 8 * 1024;
+
+	/** Chunks in the pool, about three quarters of a second of CD audio. */
+	private static final int CHUNK_COUNT = 16;
+
+	private static class Chunk {
+		final byte[] data = new byte[CHUNK_BYTES];
+		int length;
+	}
+
+	private final String resource;
+
+	/** Chunks waiting to be decoded into. */
+	private final RingBuffer<Chunk> free = new RingBuffer<Chunk>(CHUNK_COUNT);
+
+	/** Decoded chunks waiting to be played. */
+	private final RingBuffer<Chunk> filled = new RingBuffer<Chunk>(CHUNK_COUNT);
+
+	private SourceDataLine line;
+
+	private Thread decoder;
+	private Thread player;
+
+	private volatile boolean running = false;
+
+	public StreamingMusic(String resource) {
+		this.resource = resource;
+		for (int i = 0; i < CHUNK_COUNT; i++) this.free.offer(new Chunk());
+	}
+
+
+
+	/** @return true if streaming music was requested on the command line */
+	public static boolean isRequested() {
+		return Boolean.getBoolean("whg.streamMusic");
+	}
+
+
+
+	/**
+	 * Start playing the track on a loop.
+	 *
+	 * @return false if the track could not be opened or there is no audio line to play it on
+	 */
+	public synchronized boolean play() {
+		if (this.running) return true;
+
+		try {
+			AudioInputStream in = open();
+			AudioFormat format = in.getFormat();
+			in.close();
+			this.line = AudioSystem.getSourceDataLine(format);
+			this.line.open(format, CHUNK_BYTES * 4);
+		} catch (IOException | UnsupportedAudioFileException | LineUnavailableException | IllegalArgumentException e) {
+			Game.easyLog(Game.logger, Level.WARNING, "Could not stream " + this.resource + ": " + e);
+			return false;
+		}
+
+		this.running = true;
+		this.decoder = new Thread(this::decode, "Music Decoder");
+		this.player = new Thread(this::playback, "Music Player");
+		this.decoder.setDaemon(true);
+		this.player.setDaemon(true);
+		this.decoder.start();
+		this.player.start();
+		Game.easyLog(Game.logger, Level.INFO, "Streaming " + this.resource);
+		return true;
+	}
+
+
+
+	public synchronized void stop() {
+		this.running = false;
+		LockSupport.unpark(this.decoder);
+		LockSupport.unpark(this.player);
+	}
+
+
+
+	/** Open the track, converted to 16 bit little-endian PCM. */
+	private AudioInputStream open() throws IOException, UnsupportedAudioFileException {
+		URL url = ClassLoader.getSystemResource(this.resource);
+		if (url == null) throw new IOException(this.resource + " could not be found");
+
+		AudioInputStream encoded = AudioSystem.getAudioInputStream(new BufferedInputStream(url.openStream()));
+		AudioFormat source = encoded.getFormat();
+		AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, source.getSampleRate(), 16,
+				source.getChannels(), source.getChannels() * 2, source.getSampleRate(), false);
+		return AudioSystem.getAudioInputStream(pcm, encoded);
+	}
+
+
+
+	private void decode() {
+		Chunk chunk = null;
+		AudioInputStream in = null;
+		long readSinceOpen = 0;
+
+		try {
+			in = open();
+			while (this.running) {
+				if (chunk == null) {
+					chunk = this.free.poll();
+					if (chunk == null) {
+						LockSupport.park(this);
+						continue;
+					}
+					chunk.length = 0;
+				}
+
+				int read = in.read(chunk.data, chunk.length, chunk.data.length - chunk.length);
+				if (read == -1) {
+					// An empty track would otherwise be reopened forever
+					if (readSinceOpen == 0) throw new IOException(this.resource + " has no audio to loop");
+					in.close();
+					in = open();
+					readSinceOpen = 0;
+					continue;
+				}
+
+				readSinceOpen += read;
+				chunk.length += read;
+				if (chunk.length == chunk.data.length) {
+					this.filled.offer(chunk);
+					chunk = null;
+					LockSupport.unpark(this.player);
+				}
+			}
+		} catch (IOException | UnsupportedAudioFileException e) {
+			Game.easyLog(Game.logger, Level.SEVERE, "Error decoding " + this.resource + ":\n" + Game.getStringFromStackTrace(e));
+			stop();
+		} finally {
+			try {
+				if (in != null) in.close();
+			} catch (IOException e) {
+				// Nothing useful to do
+			}
+		}
+	}
+
+
+
+	private void playback() {
+		this.line.start();
+		while (this.running) {
+			Chunk chunk = this.filled.poll();
+			if (chunk == null) {
+				LockSupport.park(this);
+				continue;
+			}
+
+			applyVolume(chunk);
+			this.line.write(chunk.data, 0, chunk.length);
+			this.free.offer(chunk);
+			LockSupport.unpark(this.decoder);
+		}
+		this.line.stop();
+		this.line.close();
+	}
+
+
+
+	/** Scale the chunk's samples by the global volume, so mute works the same as for TinySound. */
+	private static void applyVolume(Chunk chunk) {
+		double volume = Game.muted ? 0 : (TinySound.isInitialized() ? TinySound.getGlobalVolume() : 1);
+		if (volume >= 1) return;
+		if (volume <= 0) {
+			Arrays.fill(chunk.data, 0, chunk.length, (byte) 0);
+			return;
+		}
+
+		byte[] data = chunk.data;
+		for (int i = 0; i + 1 < chunk.length; i += 2) {
+			int sample = (short) ((data[i] & 0xff) | (data[i + 1] << 8));
+			sample = (int) (sample * volume);
+			data[i] = (byte) sample;
+			data[i + 1] = (byte) (sample >> 8);
+		}
+	}
+
+}
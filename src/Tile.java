@@ -25,6 +25,14 @@ public class Tile {
 	 * 3 = goal */
 	private int type = 0;
 	
+	/** Size of the tile's collision box. */
+	private static final int SIZE = 39;
+	
+	/** Colors used for each tile type. */
+	private static final Color FLOOR_LIGHT = new Color(229, 255, 204);
+	private static final Color CHECKPOINT = new Color(255, 204, 229);
+	private static final Color GOAL = new Color(181, 254, 180);
+	
 	
 	
 	/** Constructor of the Tile class */
@@ -56,7 +64,7 @@ public class Tile {
 			
 				if (this.getSnapX() % 2 == 0) {
 					if (this.getSnapY() % 2 == 0) {
-						g.setColor(new Color(229, 255, 204));
+						g.setColor(FLOOR_LIGHT);
 					} else {
 						g.setColor(Color.WHITE);
 					}
@@ -64,19 +72,19 @@ public class Tile {
 					if (this.getSnapY() % 2 == 0) {
 						g.setColor(Color.WHITE);
 					} else {
-						g.setColor(new Color(229, 255, 204));
+						g.setColor(FLOOR_LIGHT);
 					}
 				}
 				g.fillRect(this.getX(), this.getY() + 22, 40, 40);
 			
 			//Checkpoint
 			} else if (this.getType() == 2) {
-				g.setColor(new Color(255, 204, 229));
+				g.setColor(CHECKPOINT);
 				g.fillRect(this.getX(), this.getY() + 22, 40, 40);
 				
 			//Goal
 			} else if (this.getType() == 3) {
-				g.setColor(new Color(181, 254, 180));
+				g.setColor(GOAL);
 				g.fillRect(this.getX(), this.getY() + 22, 40, 40);
 			}
 		}
@@ -85,7 +93,14 @@ public class Tile {
 	
 	
 	public Rectangle getBounds() {
-		return new Rectangle(this.x, this.y, 39, 39);
+		return new Rectangle(this.x, this.y, SIZE, SIZE);
+	}
+	
+	
+	
+	/** @return true if the tile overlaps the given box, in level coordinates */
+	public boolean intersects(double bx, double by, double bw, double bh) {
+		return Collision.boxesIntersect(this.x, this.y, SIZE, SIZE, bx, by, bw, bh);
 	}
 	
 	
@@ -0,0 +1,111 @@
+package whg;
+
+import java.util.Arrays;
+
+/**
+ * Durations bucketed into fixed-width bins, covering a rolling window of the
+ * most recent samples. Everything lives in arrays sized up front, so
+ * recording a sample or reading a percentile never allocates.
+ *
+ * Samples past the last bucket all land in it, but their exact lengths are
+ * kept as well, so {@link #getMaxNanos()} and the mean stay exact.
+ */
+public class TimeHistogram {
+
+	private final long bucketNanos;
+
+	/** Samples per bucket, over the current window. */
+	private final int[] counts;
+
+	/** The bucket and length of each sample in the window, oldest overwritten first. */
+	private final int[] window;
+	private final long[] samples;
+
+	private int next = 0;
+	private int size = 0;
+
+	/** Sum of the samples in the window, for the mean. */
+	private long totalNanos = 0;
+
+	/**
+	 * @param windowSize how many of the latest samples to keep
+	 * @param bucketNanos width of each bucket
+	 * @param buckets number of buckets; the last one also takes anything longer
+	 */
+	public TimeHistogram(int windowSize, long bucketNanos, int buckets) {
+		this.bucketNanos = bucketNanos;
+		this.counts = new int[buckets];
+		this.window = new int[windowSize];
+		this.samples = new long[windowSize];
+	}
+
+
+
+	public synchronized void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		int bucket = (int) Math.min(nanos / this.bucketNanos, this.counts.length - 1);
+
+		if (this.size == this.window.length) {
+			this.counts[this.window[this.next]]--;
+			this.totalNanos -= this.samples[this.next];
+		} else {
+			this.size++;
+		}
+		this.window[this.next] = bucket;
+		this.samples[this.next] = nanos;
+		this.counts[bucket]++;
+		this.totalNanos += nanos;
+		this.next = (this.next + 1) % this.window.length;
+	}
+
+
+
+	/**
+	 * @param fraction between 0 and 1, such as 0.99 for the 99th percentile
+	 * @return the upper edge of the bucket holding that percentile, capped at
+	 *         the longest sample, which is also what the last bucket gives;
+	 *         0 with no samples
+	 */
+	public synchronized long getPercentileNanos(double fraction) {
+		if (this.size == 0) return 0;
+		long rank = (long) Math.ceil(fraction * this.size);
+		if (rank < 1) rank = 1;
+
+		long seen = 0;
+		int bucket = 0;
+		while (bucket < this.counts.length - 1 && (seen += this.counts[bucket]) < rank) bucket++;
+		long max = getMaxNanos();
+		return bucket == this.counts.length - 1 ? max : Math.min((bucket + 1) * this.bucketNanos, max);
+	}
+
+
+
+	public synchronized long getMeanNanos() {
+		return this.size == 0 ? 0 : this.totalNanos / this.size;
+	}
+
+
+
+	public synchronized long getMaxNanos() {
+		long max = 0;
+		for (int i = 0; i < this.size; i++) max = Math.max(max, this.samples[i]);
+		return max;
+	}
+
+
+
+	/** @return the number of samples in the window */
+	public synchronized int getCount() {
+		return this.size;
+	}
+
+
+
+	public synchronized void clear() {
+		Arrays.fill(this.counts, 0);
+		this.next = 0;
+		this.size = 0;
+		this.totalNanos = 0;
+	}
+
+}
@@ -0,0 +1,252 @@
+package whg;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Diagnostic output, sorted into categories whose levels can be changed
+ * while the game runs. Each place that traces declares a {@link Point} once
+ * and guards the message with it, so a disabled tracepoint costs one array
+ * read and a comparison and never builds its message:
+ *
+ * <pre>
+ * private static final Trace.Point TILT = Trace.point(Trace.Category.TILT, Trace.DEBUG, 1000);
+ * ...
+ * if (TILT.enabled()) TILT.log("Received X: " + x);
+ * </pre>
+ *
+ * Messages are printed by a background thread, so tracing never waits on
+ * the console. Levels are set at startup with
+ * -Dwhg.trace=category:level,..., for example -Dwhg.trace=tilt:debug,network:off,
+ * or while running with {@link #setLevel(Category, int)}.
+ */
+public final class Trace {
+
+	public enum Category {
+		GAME,
+		INPUT,
+		TILT,
+		LEVEL,
+		NETWORK,
+		HIGHSCORE,
+	}
+
+	/** Trace levels. A tracepoint is printed if its level is at or below its category's level. */
+	public static final int OFF = 0, ERROR = 1, WARN = 2, INFO = 3, DEBUG = 4;
+
+	private static final String[] LEVEL_NAMES = {"OFF", "ERROR", "WARN", "INFO", "DEBUG"};
+
+	/** Messages waiting to be printed. */
+	private static final int CAPACITY = 1024;
+
+	/**
+	 * The level of each category. Plain reads keep the check cheap; a change
+	 * is seen by other threads soon after, which is all tracing needs.
+	 */
+	private static final int[] levels = new int[Category.values().length];
+
+	private static final RingBuffer<Message> pending = new RingBuffer<Message>(CAPACITY);
+
+	private static final LongAdder dropped = new LongAdder();
+
+	private static volatile Thread printer;
+
+	private static final class Message {
+		final int level;
+		final String text;
+
+		Message(int level, String text) {
+			this.level = level;
+			this.text = text;
+		}
+	}
+
+	static {
+		for (int i = 0; i < levels.length; i++) levels[i] = INFO;
+		configure(System.getProperty("whg.trace"));
+	}
+
+	private Trace() {
+	}
+
+
+
+	/**
+	 * A place in the code that traces.
+	 *
+	 * If it has a sampling interval, it is printed at most once per interval
+	 * and the number of messages skipped in between is added to the next one.
+	 */
+	public static final class Point {
+
+		private final Category category;
+		private final int level;
+		private final long intervalNanos;
+
+		private long nextNanos = System.nanoTime();
+		private int skipped = 0;
+
+		private Point(Category category, int level, long intervalNanos) {
+			this.category = category;
+			this.level = level;
+			this.intervalNanos = intervalNanos;
+		}
+
+
+
+		/** @return true if a message from this tracepoint should be built and logged now */
+		public boolean enabled() {
+			if (this.level > levels[this.category.ordinal()]) return false;
+			if (this.intervalNanos == 0) return true;
+
+			long now = System.nanoTime();
+			if (now - this.nextNanos < 0) {
+				this.skipped++;
+				return false;
+			}
+			this.nextNanos = now + this.intervalNanos;
+			return true;
+		}
+
+
+
+		public void log(String message) {
+			if (this.skipped > 0) {
+				message += " (" + this.skipped + " more since last)";
+				this.skipped = 0;
+			}
+			emit(this.category, this.level, message);
+		}
+
+	}
+
+
+
+	/** A tracepoint that prints every message. */
+	public static Point point(Category category, int level) {
+		return new Point(category, level, 0);
+	}
+
+
+
+	/** A tracepoint that prints at most one message per interval. */
+	public static Point point(Category category, int level, long intervalMillis) {
+		return new Point(category, level, intervalMillis * 1000000L);
+	}
+
+
+
+	/** Log a message straight away, for places that are not hot enough to need a Point. */
+	public static void log(Category category, int level, String message) {
+		if (level <= levels[category.ordinal()]) emit(category, level, message);
+	}
+
+
+
+	public static boolean isEnabled(Category category, int level) {
+		return level <= levels[category.ordinal()];
+	}
+
+
+
+	public static void setLevel(Category category, int level) {
+		levels[category.ordinal()] = Math.max(OFF, Math.min(DEBUG, level));
+	}
+
+
+
+	public static int getLevel(Category category) {
+		return levels[category.ordinal()];
+	}
+
+
+
+	/** @return the number of messages thrown away because the printer fell behind */
+	public static long getDroppedCount() {
+		return dropped.sum();
+	}
+
+
+
+	/**
+	 * Set levels from a list such as "tilt:debug,network:off". The category
+	 * "all" sets every category.
+	 */
+	public static void configure(String spec) {
+		if (spec == null || spec.trim().isEmpty()) return;
+
+		for (String entry : spec.split(",")) {
+			String[] parts = entry.trim().split(":");
+			if (parts.length != 2) {
+				System.err.println("Ignoring trace setting " + entry);
+				continue;
+			}
+
+			int level = parseLevel(parts[1].trim());
+			String name = parts[0].trim().toUpperCase(Locale.ROOT);
+			if (level < 0) {
+				System.err.println("Unknown trace level " + parts[1]);
+			} else if (name.equals("ALL")) {
+				for (Category c : Category.values()) setLevel(c, level);
+			} else {
+				try {
+					setLevel(Category.valueOf(name), level);
+				} catch (IllegalArgumentException e) {
+					System.err.println("Unknown trace category " + parts[0]);
+				}
+			}
+		}
+	}
+
+
+
+	private static int parseLevel(String name) {
+		for (int i = 0; i < LEVEL_NAMES.length; i++)
+			if (LEVEL_NAMES[i].equalsIgnoreCase(name)) return i;
+		return -1;
+	}
+
+
+
+	private static void emit(Category category, int level, String message) {
+		if (!pending.offer(new Message(level, "[" + category + " " + LEVEL_NAMES[level] + "] " + message))) {
+			dropped.increment();
+			return;
+		}
+		if (printer == null) startPrinter();
+		LockSupport.unpark(printer);
+	}
+
+
+
+	private static synchronized void startPrinter() {
+		if (printer != null) return;
+		printer = new Thread(Trace::print, "Trace Printer");
+		printer.setDaemon(true);
+		printer.start();
+	}
+
+
+
+	private static void print() {
+		long droppedReported = 0;
+		while (true) {
+			Message message = pending.poll();
+			if (message == null) {
+				long d = dropped.sum();
+				if (d != droppedReported) {
+					System.out.println("[TRACE WARN] " + (d - droppedReported) + " trace messages dropped");
+					droppedReported = d;
+				}
+				LockSupport.park();
+				continue;
+			}
+
+			PrintStream out = message.level <= WARN ? System.err : System.out;
+			out.println(message.text);
+		}
+	}
+
+}
@@ -0,0 +1,487 @@
+package whg;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * All UDP traffic with the server, on one non-blocking DatagramChannel
+ * driven by a selector on its own thread, which is the only thread that
+ * sends. The game publishes the player's position into a mailbox where
+ * the latest value wins, and the loop sends whatever is newest at a fixed
+ * rate, encoded by a {@link PositionEncoder}. Player lists are handled
+ * whenever they arrive, so a lost datagram never holds anything else up.
+ *
+ * The loop first asks the server to push player lists to it with
+ * "SUBSCRIBE interval playerId". A server that supports this answers with
+ * an acknowledgement, {@link #SUBSCRIPTION_ACK} and the interval it chose,
+ * and then sends a snapshot every interval for as long as the subscription
+ * is renewed, which the loop does every {@link #KEEPALIVE_NANOS}. If the
+ * snapshots stop, the loop subscribes again.
+ *
+ * It first tries "SUBSCRIBE2", for the compact snapshots and position
+ * updates of {@link SnapshotProtocol}, which a {@link SnapshotDecoder}
+ * rebuilds. The latest snapshot rebuilt is acknowledged in each position
+ * update, and when the player isn't moving the last position is sent again
+ * to carry the acknowledgement.
+ *
+ * An older server treats a subscribe message as a player list request
+ * from a player it doesn't know, or ignores it. If a player list comes back
+ * for "SUBSCRIBE2" the loop tries "SUBSCRIBE". If a player list or nothing
+ * comes back for that, the loop falls back to polling for the rest of the
+ * connection, requesting the list at a fixed rate. Requests that wait
+ * longer than {@link #REPLY_TIMEOUT_NANOS} count as timed out.
+ *
+ * Servers that support subscriptions also number their replies: a request
+ * "REQ seq playerId" is answered with {@link #NUMBERED_REPLY} and the same
+ * seq in front of the list, so each reply is matched to its own request
+ * and a lost one doesn't shift the rest. The loop polls like this once a
+ * server has acknowledged a subscription, for example when the
+ * subscription is lost and can't be renewed. Older servers don't echo
+ * anything, so their replies are matched to the oldest request waiting,
+ * and the round trip is only recorded when that is the only one.
+ *
+ * Replies that arrive out of order are caught by the server timestamp in
+ * {@link NetworkManager}.
+ */
+public class UdpLoop implements Runnable {
+
+    /** How often the player's position is sent, if it has been published since the last send. */
+    static final long POSITION_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(75);
+
+    /** How often the player list is requested when polling, and asked for when subscribing. */
+    static final long REQUEST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(75);
+
+    /** How long a request waits for its reply before it counts as lost. */
+    static final long REPLY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** Starts a subscription acknowledgement: "WHGS", far more players than a list could hold. */
+    static final int SUBSCRIPTION_ACK = 0x57484753;
+
+    /** Starts a reply to a numbered request: "WHGR", then the request's seq and the player list. */
+    static final int NUMBERED_REPLY = 0x57484752;
+
+    /** How long to wait for a subscription to be acknowledged, and how many times to try. */
+    private static final long SUBSCRIBE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int SUBSCRIBE_ATTEMPTS = 3;
+
+    /** How often a subscription is renewed. Servers drop it after a few seconds without. */
+    static final long KEEPALIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** Intervals without a snapshot before the subscription is taken to be lost. */
+    private static final int MISSED_SNAPSHOTS = 10;
+
+    /** Requests that can wait for replies at once; more than a timeout's worth. */
+    private static final int MAX_PENDING = 32;
+
+    private static final int MAX_DATAGRAM = 8192;
+
+    /** An empty mailbox. No real position packs to this. */
+    private static final long NO_POSITION = Long.MIN_VALUE;
+
+    /** How the loop is getting player lists. */
+    private static final int NEGOTIATING = 0, SUBSCRIBED = 1, POLLING = 2;
+
+    private final NetworkManager manager;
+    private final SocketAddress positionAddress;
+    private final SocketAddress playerListAddress;
+    private final byte[] playerListRequest;
+    private final byte[] numberedRequestSuffix;
+    private final ByteBuffer numberedRequest;
+    private final byte[] subscribeRequest;
+    private final byte[] subscribeRequestV2;
+    private final byte[] unsubscribeRequest;
+    private final PositionEncoder positionEncoder;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_DATAGRAM);
+
+    /** The latest published position, x in the high half and y in the low half. */
+    private final AtomicLong mailbox = new AtomicLong(NO_POSITION);
+    private volatile boolean mailboxRed;
+
+    /** The last position sent, for the velocity. Only used on the loop thread. */
+    private boolean sentPosition = false;
+    private int lastSentX;
+    private int lastSentY;
+
+    /** Subscription state. Only used on the loop thread. */
+    private int mode = NEGOTIATING;
+    private int version = 2;
+    private boolean everSubscribed = false;
+    private boolean numberedReplies = false;
+    private int session = -1;
+    /** The ack in the last position update, or -1 so that even an ack of 0 goes out. */
+    private int sentAck = -1;
+    private final SnapshotDecoder decoder = new SnapshotDecoder();
+    private int subscribeAttempts = 0;
+    private long nextSubscribe;
+    private long subscribeSentNanos = 0;
+    private long lastSnapshotNanos;
+    private long pushIntervalNanos = REQUEST_INTERVAL_NANOS;
+
+    /** Requests waiting for replies, by sequence number modulo MAX_PENDING. Only used on the loop thread. */
+    private final long[] pendingSentNanos = new long[MAX_PENDING];
+    private final GameEvents.NetworkFetch[] pendingEvents = new GameEvents.NetworkFetch[MAX_PENDING];
+    private long nextSequence = 0;
+    private long oldestPending = 0;
+
+    private Thread thread;
+    private volatile boolean running = false;
+
+    public UdpLoop(NetworkManager manager, InetSocketAddress positionAddress,
+            InetSocketAddress playerListAddress, String playerId) throws IOException {
+        this.manager = manager;
+        this.positionAddress = positionAddress;
+        this.playerListAddress = playerListAddress;
+        this.playerListRequest = playerId.getBytes("UTF-8");
+        this.numberedRequestSuffix = (" " + playerId).getBytes("UTF-8");
+        this.numberedRequest = ByteBuffer.allocate(4 + 10 + numberedRequestSuffix.length);
+        this.subscribeRequest = ("SUBSCRIBE " + TimeUnit.NANOSECONDS.toMillis(REQUEST_INTERVAL_NANOS)
+                + " " + playerId).getBytes("UTF-8");
+        this.subscribeRequestV2 = ("SUBSCRIBE2 " + TimeUnit.NANOSECONDS.toMillis(REQUEST_INTERVAL_NANOS)
+                + " " + playerId).getBytes("UTF-8");
+        this.unsubscribeRequest = ("UNSUBSCRIBE " + playerId).getBytes("UTF-8");
+        this.positionEncoder = new PositionEncoder(playerId);
+
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.bind(null);
+        this.selector = Selector.open();
+        this.channel.register(this.selector, SelectionKey.OP_READ);
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this, "Network Loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stop the loop, ending any subscription, and close the channel. */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        Thread t = thread;
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Make this the position sent next, replacing any not sent yet. Never
+     * blocks or allocates.
+     */
+    public void publishPosition(int x, int y, boolean red) {
+        mailboxRed = red;
+        mailbox.set(((long) x << 32) | (y & 0xFFFFFFFFL));
+    }
+
+    public void run() {
+        long now = System.nanoTime();
+        long nextRequest = now;
+        long nextPosition = now;
+        nextSubscribe = now;
+        try {
+            while (running) {
+                now = System.nanoTime();
+                if (now - nextPosition >= 0) {
+                    sendLatestPosition();
+                    nextPosition = now + POSITION_INTERVAL_NANOS;
+                }
+                if (mode != POLLING && now - nextSubscribe >= 0) {
+                    subscribe(now);
+                }
+                if (mode == SUBSCRIBED && now - lastSnapshotNanos > MISSED_SNAPSHOTS * pushIntervalNanos) {
+                    Game.easyLog(Game.logger, Level.WARNING, "Player snapshots stopped, subscribing again");
+                    mode = NEGOTIATING;
+                    subscribeAttempts = 0;
+                    subscribe(now);
+                }
+                if (mode == POLLING && now - nextRequest >= 0) {
+                    requestPlayerList(now);
+                    nextRequest = now + REQUEST_INTERVAL_NANOS;
+                }
+                expirePending(now);
+
+                long next = nextPosition;
+                if (mode != POLLING && nextSubscribe - next < 0) next = nextSubscribe;
+                if (mode == POLLING && nextRequest - next < 0) next = nextRequest;
+                long waitMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - System.nanoTime()));
+                selector.select(waitMillis);
+                selector.selectedKeys().clear();
+                receiveAll();
+            }
+            if (mode == SUBSCRIBED) channel.send(ByteBuffer.wrap(unsubscribeRequest), playerListAddress);
+        } catch (IOException e) {
+            if (running) Game.easyLog(Game.logger, Level.SEVERE, "Network loop stopped: " + e.getMessage());
+        } finally {
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+    }
+
+    /**
+     * Send a subscription request, or a renewal, and decide when the next
+     * one is due. Gives up and polls after a few unanswered attempts.
+     */
+    private void subscribe(long now) throws IOException {
+        if (mode == NEGOTIATING && subscribeAttempts == SUBSCRIBE_ATTEMPTS) {
+            Game.easyLog(Game.logger, Level.INFO, "Server didn't answer the subscription, polling for players instead");
+            mode = POLLING;
+            return;
+        }
+
+        byte[] request = version == 2 ? subscribeRequestV2 : subscribeRequest;
+        if (channel.send(ByteBuffer.wrap(request), playerListAddress) > 0) {
+            GameMetrics.udpPacketsSent.increment();
+            subscribeSentNanos = now;
+        }
+        if (mode == NEGOTIATING) {
+            subscribeAttempts++;
+            nextSubscribe = now + SUBSCRIBE_TIMEOUT_NANOS;
+        } else {
+            nextSubscribe = now + KEEPALIVE_NANOS;
+        }
+    }
+
+    /**
+     * Send the newest published position, if there is one, or the last one
+     * again if a newer snapshot needs acknowledging. If the socket's send
+     * buffer is full it is dropped, as the next one replaces it anyway.
+     */
+    private void sendLatestPosition() throws IOException {
+        boolean compact = mode == SUBSCRIBED && session >= 0;
+        int ack = decoder.getAck();
+        long packed = mailbox.getAndSet(NO_POSITION);
+        if (packed == NO_POSITION) {
+            if (!compact || !sentPosition || ack == sentAck) return;
+            packed = ((long) lastSentX << 32) | (lastSentY & 0xFFFFFFFFL);
+        }
+
+        int x = (int) (packed >> 32);
+        int y = (int) packed;
+        int velocityX = sentPosition ? x - lastSentX : 0;
+        int velocityY = sentPosition ? y - lastSentY : 0;
+
+        ByteBuffer packet = compact
+                ? positionEncoder.encodeCompact(session, ack, x, y, velocityX, velocityY, mailboxRed)
+                : positionEncoder.encode(System.currentTimeMillis(), x, y, velocityX, velocityY, mailboxRed);
+        if (channel.send(packet, positionAddress) > 0) {
+            GameMetrics.udpPacketsSent.increment();
+            sentPosition = true;
+            lastSentX = x;
+            lastSentY = y;
+            if (compact) sentAck = ack;
+        }
+    }
+
+    private void requestPlayerList(long now) throws IOException {
+        if (nextSequence - oldestPending == MAX_PENDING) timeOut();
+
+        GameEvents.NetworkFetch event = new GameEvents.NetworkFetch();
+        event.begin();
+        ByteBuffer request = numberedReplies ? numberedRequest(nextSequence) : ByteBuffer.wrap(playerListRequest);
+        if (channel.send(request, playerListAddress) == 0) {
+            // The send buffer is full; try again next interval
+            return;
+        }
+        GameMetrics.udpPacketsSent.increment();
+
+        int slot = (int) (nextSequence % MAX_PENDING);
+        pendingSentNanos[slot] = now;
+        pendingEvents[slot] = event;
+        nextSequence++;
+    }
+
+    /** "REQ seq playerId", with the seq in the low 31 bits. */
+    private ByteBuffer numberedRequest(long sequence) {
+        numberedRequest.clear();
+        numberedRequest.put((byte) 'R').put((byte) 'E').put((byte) 'Q').put((byte) ' ');
+        int seq = (int) (sequence & Integer.MAX_VALUE);
+        int digits = 1;
+        for (int n = seq; n >= 10; n /= 10) digits++;
+        int end = numberedRequest.position() + digits;
+        for (int i = end - 1; i >= end - digits; i--) {
+            numberedRequest.put(i, (byte) ('0' + seq % 10));
+            seq /= 10;
+        }
+        numberedRequest.position(end);
+        numberedRequest.put(numberedRequestSuffix);
+        numberedRequest.flip();
+        return numberedRequest;
+    }
+
+    private void expirePending(long now) {
+        while (oldestPending < nextSequence) {
+            int slot = (int) (oldestPending % MAX_PENDING);
+            if (pendingEvents[slot] == null) {
+                // Answered out of order
+                oldestPending++;
+            } else if (now - pendingSentNanos[slot] > REPLY_TIMEOUT_NANOS) {
+                timeOut();
+            } else {
+                return;
+            }
+        }
+    }
+
+    /** A numbered reply arrived; match it to its request, unless that already timed out. */
+    private void answered(int seq, long now, int length) {
+        long sequence = oldestPending + ((seq - oldestPending) & Integer.MAX_VALUE);
+        if (sequence >= nextSequence) return;
+        int slot = (int) (sequence % MAX_PENDING);
+        GameEvents.NetworkFetch event = pendingEvents[slot];
+        if (event == null) return;
+
+        manager.recordRoundTrip(now - pendingSentNanos[slot]);
+        event.bytes = length;
+        event.answered = true;
+        event.commit();
+        pendingEvents[slot] = null;
+        while (oldestPending < nextSequence && pendingEvents[(int) (oldestPending % MAX_PENDING)] == null) {
+            oldestPending++;
+        }
+    }
+
+    /** Give up on the oldest request still waiting. */
+    private void timeOut() {
+        int slot = (int) (oldestPending % MAX_PENDING);
+        pendingEvents[slot].commit();
+        pendingEvents[slot] = null;
+        oldestPending++;
+        GameMetrics.udpTimeouts.increment();
+    }
+
+    private void receiveAll() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            if (channel.receive(receiveBuffer) == null) return;
+            GameMetrics.udpPacketsReceived.increment();
+
+            int length = receiveBuffer.position();
+            long now = System.nanoTime();
+            if (length >= 12 && receiveBuffer.getInt(0) == SnapshotProtocol.SUBSCRIPTION_ACK) {
+                subscribed(now, receiveBuffer.getInt(4), receiveBuffer.getInt(8) & 0xFFFF);
+                continue;
+            }
+            if (length >= 8 && receiveBuffer.getInt(0) == SUBSCRIPTION_ACK) {
+                subscribed(now, receiveBuffer.getInt(4), -1);
+                continue;
+            }
+            if (length >= 8 && receiveBuffer.getInt(0) == NUMBERED_REPLY) {
+                answered(receiveBuffer.getInt(4), now, length);
+                manager.processUdpResponse(receiveBuffer.array(), 8, length - 8);
+                continue;
+            }
+            if (length > 0 && receiveBuffer.get(0) == SnapshotProtocol.MARKER) {
+                receiveBuffer.flip();
+                SnapshotDecoder.Snapshot snapshot = decoder.decode(receiveBuffer);
+                if (snapshot != null) {
+                    lastSnapshotNanos = now;
+                    manager.processSnapshot(snapshot, length);
+                }
+                continue;
+            }
+
+            if (mode == NEGOTIATING && !everSubscribed) {
+                // An older server answered the subscription as a request from a
+                // player it doesn't know, so the list isn't filtered; drop it
+                if (version == 2) {
+                    Game.easyLog(Game.logger, Level.INFO, "Server doesn't send compact snapshots, subscribing to player lists");
+                    version = 1;
+                    subscribeAttempts = 0;
+                    nextSubscribe = now;
+                } else {
+                    Game.easyLog(Game.logger, Level.INFO, "Server doesn't push player lists, polling instead");
+                    mode = POLLING;
+                }
+                continue;
+            }
+
+            if (mode == POLLING && numberedReplies) {
+                // The server took "REQ seq playerId" for a player it doesn't
+                // know, so the list isn't filtered; drop it and stop numbering
+                Game.easyLog(Game.logger, Level.INFO, "Server doesn't number its replies");
+                numberedReplies = false;
+                answeredOldest(now, length);
+                continue;
+            }
+
+            if (mode == SUBSCRIBED) {
+                lastSnapshotNanos = now;
+            } else {
+                answeredOldest(now, length);
+            }
+            manager.processUdpResponse(receiveBuffer.array(), 0, length);
+        }
+    }
+
+    /**
+     * A reply without a seq arrived; match it to the oldest request waiting.
+     * It can't be told apart from a reply to an earlier one, so its round
+     * trip is only recorded when that is the only request waiting.
+     */
+    private void answeredOldest(long now, int length) {
+        if (oldestPending == nextSequence) return;
+        int slot = (int) (oldestPending % MAX_PENDING);
+        if (nextSequence - oldestPending == 1) manager.recordRoundTrip(now - pendingSentNanos[slot]);
+        GameEvents.NetworkFetch event = pendingEvents[slot];
+        event.bytes = length;
+        event.answered = true;
+        event.commit();
+        pendingEvents[slot] = null;
+        oldestPending++;
+    }
+
+    /**
+     * The server acknowledged a subscription or its renewal.
+     * @param newSession the session id for compact snapshots, or -1 for player lists
+     */
+    private void subscribed(long now, int intervalMillis, int newSession) {
+        if (subscribeSentNanos != 0) {
+            manager.recordRoundTrip(now - subscribeSentNanos);
+            subscribeSentNanos = 0;
+        }
+        pushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+        if (mode != SUBSCRIBED || newSession != session) {
+            // A new subscription, or the server forgot the old one: start over
+            decoder.reset();
+            sentAck = -1;
+            session = newSession;
+        }
+        if (mode != SUBSCRIBED) {
+            Game.easyLog(Game.logger, Level.INFO, "Server is pushing " + (session >= 0 ? "compact snapshots" : "player lists")
+                    + " every " + intervalMillis + "ms");
+            mode = SUBSCRIBED;
+            everSubscribed = true;
+            numberedReplies = true;
+            lastSnapshotNanos = now;
+            nextSubscribe = now + KEEPALIVE_NANOS;
+            while (oldestPending < nextSequence) {
+                int slot = (int) (oldestPending % MAX_PENDING);
+                pendingEvents[slot] = null;
+                oldestPending++;
+            }
+        }
+    }
+
+}